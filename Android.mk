@@ -35,3 +35,5 @@ LOCAL_STATIC_JAVA_LIBRARIES := play \
                                org.cyanogenmod.platform.sdk
 
 include $(BUILD_PACKAGE)
+
+include $(call all-makefiles-under,$(LOCAL_PATH))
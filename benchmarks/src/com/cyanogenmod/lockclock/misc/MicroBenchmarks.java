@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock.misc;
+
+import android.content.Context;
+
+import com.cyanogenmod.lockclock.calendar.CalendarInfo;
+import com.cyanogenmod.lockclock.calendar.EventDetails;
+import com.cyanogenmod.lockclock.weather.Utils;
+import com.cyanogenmod.lockclock.weather.WeatherDisplay;
+import cyanogenmod.providers.WeatherContract;
+import cyanogenmod.weather.WeatherInfo;
+import cyanogenmod.weather.util.WeatherUtils;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+
+/**
+ * Micro benchmarks of the render paths that don't touch the widget host or a content
+ * provider. They run on the build host with
+ *   make RunLockClockBenchmarks
+ * against the framework classes of Robolectric, so the numbers compare one version of the
+ * code with another and don't stand for the speed on a device.
+ *
+ * Allocations are read per thread from the JVM, only the benchmark thread is accounted for.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class MicroBenchmarks {
+    private static final long WARMUP_NS = 200L * 1000L * 1000L;
+    private static final long MEASURE_NS = 500L * 1000L * 1000L;
+    private static final int BATCH_SIZE = 100;
+
+    // Keeps the results reachable so the work isn't optimized away
+    private static Object sSink;
+
+    private static abstract class Benchmark {
+        final String mName;
+
+        Benchmark(String name) {
+            mName = name;
+        }
+
+        abstract Object run(int iteration);
+    }
+
+    @Test
+    public void run() {
+        final PrintWriter pw = new PrintWriter(System.out, true);
+        run(RuntimeEnvironment.application, pw);
+        pw.flush();
+    }
+
+    private static void run(final Context context, PrintWriter pw) {
+        final WeatherInfo weather = createSampleWeather();
+        final byte[] encodedWeather;
+        try {
+            encodedWeather = WeatherCacheFile.encode(0, weather);
+        } catch (IOException e) {
+            pw.println("Failed to encode the sample weather: " + e);
+            return;
+        }
+        final long now = System.currentTimeMillis();
+        final int conditionCount =
+                WeatherContract.WeatherColumns.WeatherCode.ISOLATED_THUNDERSHOWERS + 1;
+
+        final Benchmark[] benchmarks = {
+            new Benchmark("weather encode") {
+                @Override
+                Object run(int iteration) {
+                    try {
+                        return WeatherCacheFile.encode(0, weather);
+                    } catch (IOException e) {
+                        return null;
+                    }
+                }
+            },
+            new Benchmark("weather decode") {
+                @Override
+                Object run(int iteration) {
+                    try {
+                        return WeatherCacheFile.decode(encodedWeather);
+                    } catch (IOException e) {
+                        return null;
+                    }
+                }
+            },
+            new Benchmark("condition name") {
+                @Override
+                Object run(int iteration) {
+                    return Utils.resolveWeatherCondition(context, iteration % conditionCount);
+                }
+            },
+            new Benchmark("humidity and wind") {
+                @Override
+                Object run(int iteration) {
+                    return Utils.formatHumidity(weather.getHumidity())
+                            + Utils.formatWindSpeed(context, weather.getWindSpeed(),
+                                    weather.getWindSpeedUnit());
+                }
+            },
+            new Benchmark("temperature conversion") {
+                @Override
+                Object run(int iteration) {
+                    double temp = WeatherUtils.celsiusToFahrenheit(weather.getTemperature());
+                    return WeatherUtils.formatTemperature(temp,
+                            WeatherContract.WeatherColumns.TempUnit.FAHRENHEIT);
+                }
+            },
+            new Benchmark("weather display") {
+                @Override
+                Object run(int iteration) {
+                    return WeatherDisplay.build(context, weather);
+                }
+            },
+            new Benchmark("event details") {
+                @Override
+                Object run(int iteration) {
+                    return EventDetails.build(context, now, now + 3600000L, false, false,
+                            "Conference room\nSecond floor", "Weekly sync",
+                            Preferences.SHOW_FIRST_LINE, Preferences.SHOW_ALWAYS);
+                }
+            },
+            new Benchmark("event sorting") {
+                @Override
+                Object run(int iteration) {
+                    CalendarInfo.Builder info = new CalendarInfo.Builder();
+                    for (int i = Constants.MAX_CALENDAR_ITEMS; i > 0; i--) {
+                        info.addEvent(i, "Event", "Details", now + i * 3600000L,
+                                now + (i + 1) * 3600000L, false);
+                    }
+                    return info.build();
+                }
+            },
+        };
+
+        pw.println("Micro benchmarks (" + (MEASURE_NS / 1000000L) + " ms each):");
+        for (Benchmark benchmark : benchmarks) {
+            measure(benchmark, WARMUP_NS);
+            long[] result = measure(benchmark, MEASURE_NS);
+            long ops = result[0];
+            long nanos = result[1];
+            long bytes = result[2];
+            pw.println(String.format("  %s: %.0f ns/op, %.0f ops/s, %s",
+                    benchmark.mName, (double) nanos / ops, ops * 1e9 / nanos,
+                    bytes < 0 ? "allocations n/a" : String.format("%.0f B/op",
+                            (double) bytes / ops)));
+        }
+        sSink = null;
+    }
+
+    /**
+     * @return The operation count, elapsed nanoseconds and allocated bytes (-1 if unknown)
+     */
+    private static long[] measure(Benchmark benchmark, long durationNs) {
+        final long allocatedBefore = bytesAllocated();
+        final long start = System.nanoTime();
+        long elapsed;
+        int ops = 0;
+        do {
+            for (int i = 0; i < BATCH_SIZE; i++) {
+                sSink = benchmark.run(ops++);
+            }
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < durationNs);
+        final long allocatedAfter = bytesAllocated();
+
+        long allocated = allocatedBefore < 0 || allocatedAfter < 0
+                ? -1 : allocatedAfter - allocatedBefore;
+        return new long[] { ops, elapsed, allocated };
+    }
+
+    private static long bytesAllocated() {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        if (!threads.isThreadAllocatedMemorySupported()
+                || !threads.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+        return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static WeatherInfo createSampleWeather() {
+        ArrayList<WeatherInfo.DayForecast> forecasts = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            forecasts.add(new WeatherInfo.DayForecast.Builder(i + 26)
+                    .setLow(10 + i).setHigh(20 + i).build());
+        }
+        return new WeatherInfo.Builder("Mountain View", 21.5,
+                WeatherContract.WeatherColumns.TempUnit.CELSIUS)
+                .setWeatherCondition(WeatherContract.WeatherColumns.WeatherCode.SHOWERS)
+                .setTimestamp(System.currentTimeMillis())
+                .setHumidity(62)
+                .setWind(14, 230, WeatherContract.WeatherColumns.WindSpeedUnit.KPH)
+                .setTodaysHigh(24)
+                .setTodaysLow(12)
+                .setForecast(forecasts)
+                .build();
+    }
+}
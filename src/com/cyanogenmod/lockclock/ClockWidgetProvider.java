@@ -20,11 +20,15 @@ import android.appwidget.AppWidgetManager;
 import android.appwidget.AppWidgetProvider;
 import android.content.Context;
 import android.content.Intent;
-import android.net.ConnectivityManager;
+import android.os.Bundle;
 import android.util.Log;
 
+import com.cyanogenmod.lockclock.calendar.CalendarRepository;
 import com.cyanogenmod.lockclock.misc.Constants;
+import com.cyanogenmod.lockclock.misc.LayoutPlan;
 import com.cyanogenmod.lockclock.misc.Preferences;
+import com.cyanogenmod.lockclock.misc.WidgetRenderState;
+import com.cyanogenmod.lockclock.misc.WidgetSettings;
 import com.cyanogenmod.lockclock.misc.WidgetUtils;
 import com.cyanogenmod.lockclock.weather.ForecastActivity;
 import com.cyanogenmod.lockclock.weather.Utils;
@@ -39,9 +43,30 @@ public class ClockWidgetProvider extends AppWidgetProvider {
     public void onUpdate(Context context, AppWidgetManager appWidgetManager, int[] appWidgetIds) {
         // Default handling, triggered via the super class
         if (D) Log.v(TAG, "Updating widgets, default handling.");
+        // The host may have lost what it had, make sure the next update is a full one
+        for (int id : appWidgetIds) {
+            WidgetRenderState.invalidate(id);
+        }
         updateWidgets(context, false, false);
     }
 
+    @Override
+    public void onDeleted(Context context, int[] appWidgetIds) {
+        for (int id : appWidgetIds) {
+            WidgetRenderState.invalidate(id);
+            LayoutPlan.invalidate(id);
+        }
+    }
+
+    @Override
+    public void onAppWidgetOptionsChanged(Context context, AppWidgetManager appWidgetManager,
+            int appWidgetId, Bundle newOptions) {
+        // The widget was resized or moved, recompute its layout on the next refresh which is
+        // triggered once the super class is done with the broadcast
+        if (D) Log.d(TAG, "Options changed for widget " + appWidgetId);
+        LayoutPlan.invalidate(appWidgetId);
+    }
+
     @Override
     public void onReceive(Context context, Intent intent) {
 
@@ -49,23 +74,8 @@ public class ClockWidgetProvider extends AppWidgetProvider {
         String action = intent.getAction();
         if (D) Log.v(TAG, "Received intent " + intent);
 
-        // Network connection has changed, make sure the weather update service knows about it
-        if (ConnectivityManager.CONNECTIVITY_ACTION.equals(action)
-                && Utils.isWeatherServiceAvailable(context)) {
-            boolean hasConnection =
-                    !intent.getBooleanExtra(ConnectivityManager.EXTRA_NO_CONNECTIVITY, false);
-
-            if (D) Log.d(TAG, "Got connectivity change, has connection: " + hasConnection);
-
-            Intent i = new Intent(context, WeatherUpdateService.class);
-            if (hasConnection) {
-                context.startService(i);
-            } else {
-                context.stopService(i);
-            }
-
         // Boot completed, schedule next weather update
-        } else if (Intent.ACTION_BOOT_COMPLETED.equals(action)) {
+        if (Intent.ACTION_BOOT_COMPLETED.equals(action)) {
             //Since we're using elapsed time since boot, we can't use the timestamp from the
             //previous boot so we need to reset the timer
             Preferences.setLastWeatherUpadteTimestamp(context, 0);
@@ -74,14 +84,26 @@ public class ClockWidgetProvider extends AppWidgetProvider {
                 || AppWidgetManager.ACTION_APPWIDGET_DISABLED.equals(action)) {
             super.onReceive(context, intent);
 
-        // Calendar, Time or a settings change, force a calendar refresh
-        } else if (Intent.ACTION_PROVIDER_CHANGED.equals(action)
-                || Intent.ACTION_TIME_CHANGED.equals(action)
+        // A calendar change, only refresh if the events shown are affected
+        } else if (Intent.ACTION_PROVIDER_CHANGED.equals(action)) {
+            CalendarRepository.get(context).requestSync();
+
+        // Time or a settings change, force a calendar refresh
+        } else if (Intent.ACTION_TIME_CHANGED.equals(action)
                 || Intent.ACTION_TIMEZONE_CHANGED.equals(action)
                 || Intent.ACTION_DATE_CHANGED.equals(action)
                 || Intent.ACTION_LOCALE_CHANGED.equals(action)
                 || "android.app.action.NEXT_ALARM_CLOCK_CHANGED".equals(action)
                 || ClockWidgetService.ACTION_REFRESH_CALENDAR.equals(action)) {
+            if (Intent.ACTION_LOCALE_CHANGED.equals(action)) {
+                // The default of some settings depends on the locale
+                WidgetSettings.invalidate();
+            }
+            if (!ClockWidgetService.ACTION_REFRESH_CALENDAR.equals(action)
+                    && !"android.app.action.NEXT_ALARM_CLOCK_CHANGED".equals(action)) {
+                // The event dates are formatted for the locale, time zone and day
+                CalendarRepository.get(context).invalidateDetails();
+            }
             updateWidgets(context, true, false);
 
         // There are no events to show in the Calendar panel, hide it explicitly
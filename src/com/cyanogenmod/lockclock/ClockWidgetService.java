@@ -17,40 +17,46 @@
 package com.cyanogenmod.lockclock;
 
 import android.app.AlarmManager;
-import android.app.IntentService;
 import android.app.PendingIntent;
+import android.app.Service;
 import android.appwidget.AppWidgetManager;
-import android.appwidget.AppWidgetProviderInfo;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.res.Resources;
 import android.net.Uri;
-import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.IBinder;
+import android.os.Message;
 import android.text.TextUtils;
 import android.text.format.DateFormat;
 import android.util.Log;
 import android.util.TypedValue;
 import android.view.View;
-import android.widget.RemoteViews;
 import com.cyanogenmod.lockclock.calendar.CalendarViewsService;
 import com.cyanogenmod.lockclock.misc.Constants;
 import com.cyanogenmod.lockclock.misc.IconUtils;
-import com.cyanogenmod.lockclock.misc.Preferences;
+import com.cyanogenmod.lockclock.misc.LayoutPlan;
+import com.cyanogenmod.lockclock.misc.RenderStats;
+import com.cyanogenmod.lockclock.misc.WeatherSnapshot;
+import com.cyanogenmod.lockclock.misc.WidgetRenderState;
+import com.cyanogenmod.lockclock.misc.WidgetSettings;
 import com.cyanogenmod.lockclock.misc.WidgetUtils;
-import com.cyanogenmod.lockclock.weather.Utils;
+import com.cyanogenmod.lockclock.weather.WeatherDisplay;
+import com.cyanogenmod.lockclock.weather.WeatherFreshness;
 import com.cyanogenmod.lockclock.weather.WeatherUpdateService;
-import static cyanogenmod.providers.WeatherContract.WeatherColumns.TempUnit.FAHRENHEIT;
-import static cyanogenmod.providers.WeatherContract.WeatherColumns.TempUnit.CELSIUS;
 import cyanogenmod.weather.CMWeatherManager;
 import cyanogenmod.weather.WeatherInfo;
-import cyanogenmod.weather.util.WeatherUtils;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
+import java.util.TimeZone;
 
-public class ClockWidgetService extends IntentService {
+public class ClockWidgetService extends Service {
     private static final String TAG = "ClockWidgetService";
     private static final boolean D = Constants.DEBUG;
 
@@ -58,48 +64,140 @@ public class ClockWidgetService extends IntentService {
     public static final String ACTION_REFRESH_CALENDAR = "com.cyanogenmod.lockclock.action.REFRESH_CALENDAR";
     public static final String ACTION_HIDE_CALENDAR = "com.cyanogenmod.lockclock.action.HIDE_CALENDAR";
 
+    // Refresh requests arriving within this window after the first one are merged into a
+    // single render. Calendar syncs and time changes tend to come in bursts of broadcasts
+    private static final long REFRESH_COALESCE_WINDOW_MS = 250L;
+
+    private static final int MSG_RENDER = 1;
+
+    // Dirty flags carried by the pending render
+    private static final int DIRTY_WIDGET = 1;
+    private static final int DIRTY_CALENDAR = 1 << 1;
+
     // This needs to be static to persist between refreshes until explicitly changed by an intent
     private static boolean mHideCalendar = false;
 
+    // The last weather render of the regular and the small widget layout. Static as the
+    // service doesn't outlive a refresh
+    private static final WeatherRender[] sWeatherRenders = new WeatherRender[2];
+    // The weather icon is dimmed to this alpha while the data is stale
+    private static final int STALE_WEATHER_IMAGE_ALPHA = 128;
+
     private int[] mWidgetIds;
     private AppWidgetManager mAppWidgetManager;
     private Context mContext;
+    private WidgetSettings mSettings;
 
-    public ClockWidgetService() {
-        super("ClockWidgetService");
-    }
+    private HandlerThread mWorkerThread;
+    private Handler mHandler;
+
+    // The pending render, guarded by 'this'
+    private int mPendingDirtyFlags;
+    private Boolean mPendingHideCalendar;
+    private int mLastStartId;
 
     @Override
     public void onCreate() {
         super.onCreate();
 
-        ComponentName thisWidget = new ComponentName(this, ClockWidgetProvider.class);
         mAppWidgetManager = AppWidgetManager.getInstance(this);
-        mWidgetIds = mAppWidgetManager.getAppWidgetIds(thisWidget);
         mContext = getApplicationContext();
+
+        mWorkerThread = new HandlerThread("clock-widget-worker");
+        mWorkerThread.start();
+        mHandler = new Handler(mWorkerThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == MSG_RENDER) {
+                    render();
+                }
+            }
+        };
     }
 
     @Override
-    protected void onHandleIntent(Intent intent) {
+    public int onStartCommand(Intent intent, int flags, int startId) {
         if (D) Log.d(TAG, "Got intent " + intent);
+        final String action = intent != null ? intent.getAction() : null;
 
-        if (mWidgetIds != null && mWidgetIds.length != 0) {
-            // Check passed in intents
-            if (intent != null) {
-                if (ACTION_HIDE_CALENDAR.equals(intent.getAction())) {
-                    if (D) Log.v(TAG, "Force hiding the calendar panel");
-                    // Explicitly hide the panel since we received a broadcast indicating no events
-                    mHideCalendar = true;
-                } else if (ACTION_REFRESH_CALENDAR.equals(intent.getAction())) {
-                    if (D) Log.v(TAG, "Forcing a calendar refresh");
-                    // Start with the panel not explicitly hidden
-                    // If there are no events, a broadcast to the service will hide the panel
-                    mHideCalendar = false;
-                    mAppWidgetManager.notifyAppWidgetViewDataChanged(mWidgetIds, R.id.calendar_list);
-                }
+        RenderStats.countTrigger(action);
+
+        synchronized (this) {
+            if (ACTION_HIDE_CALENDAR.equals(action)) {
+                // The latest of a hide or a calendar refresh request decides the panel state
+                mPendingHideCalendar = Boolean.TRUE;
+            } else if (ACTION_REFRESH_CALENDAR.equals(action)) {
+                mPendingHideCalendar = Boolean.FALSE;
+                mPendingDirtyFlags |= DIRTY_CALENDAR;
+            }
+            mPendingDirtyFlags |= DIRTY_WIDGET;
+            mLastStartId = startId;
+
+            if (!mHandler.hasMessages(MSG_RENDER)) {
+                mHandler.sendEmptyMessageDelayed(MSG_RENDER, REFRESH_COALESCE_WINDOW_MS);
+            } else if (D) {
+                Log.v(TAG, "Merged into the pending render");
+            }
+        }
+        return START_NOT_STICKY;
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        return null;
+    }
+
+    @Override
+    public void onDestroy() {
+        mWorkerThread.quit();
+        super.onDestroy();
+    }
+
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        synchronized (this) {
+            pw.println("Pending dirty flags: " + mPendingDirtyFlags
+                    + ", hide calendar: " + mPendingHideCalendar);
+        }
+        pw.println("Calendar hidden: " + mHideCalendar);
+        RenderStats.dump(pw);
+    }
+
+    /**
+     * Perform the pending render carrying the union of all requests merged into it
+     */
+    private void render() {
+        final int dirtyFlags;
+        final Boolean hideCalendar;
+        final int startId;
+        synchronized (this) {
+            dirtyFlags = mPendingDirtyFlags;
+            hideCalendar = mPendingHideCalendar;
+            startId = mLastStartId;
+            mPendingDirtyFlags = 0;
+            mPendingHideCalendar = null;
+        }
+
+        ComponentName thisWidget = new ComponentName(this, ClockWidgetProvider.class);
+        mWidgetIds = mAppWidgetManager.getAppWidgetIds(thisWidget);
+
+        if (dirtyFlags != 0 && mWidgetIds != null && mWidgetIds.length != 0) {
+            if (hideCalendar != null) {
+                if (D) Log.v(TAG, hideCalendar ? "Force hiding the calendar panel"
+                        : "Forcing a calendar refresh");
+                // Explicitly hide the panel if we received a broadcast indicating no events,
+                // otherwise start with the panel not explicitly hidden. If there are no
+                // events, a broadcast to the service will hide the panel
+                mHideCalendar = hideCalendar;
+            }
+            if ((dirtyFlags & DIRTY_CALENDAR) != 0) {
+                mAppWidgetManager.notifyAppWidgetViewDataChanged(mWidgetIds, R.id.calendar_list);
             }
             refreshWidget();
         }
+
+        // Only stops if no request came in since this render was picked up
+        stopSelfResult(startId);
     }
 
     /**
@@ -107,75 +205,67 @@ public class ClockWidgetService extends IntentService {
      */
     private void refreshWidget() {
         // Get things ready
-        RemoteViews remoteViews;
-        boolean digitalClock = Preferences.showDigitalClock(this);
-        boolean showWeather = Preferences.showWeather(this);
-        boolean showWeatherWhenMinimized = Preferences.showWeatherWhenMinimized(this);
+        WidgetRenderState remoteViews;
+        mSettings = WidgetSettings.get(this);
+        boolean digitalClock = mSettings.showDigitalClock;
+        boolean showWeather = mSettings.showWeather;
+        boolean showWeatherWhenMinimized = mSettings.showWeatherWhenMinimized;
 
         // Update the widgets
         for (int id : mWidgetIds) {
+            final long renderStart = RenderStats.start();
             boolean showCalendar = false;
 
-            // Determine if its a home or a lock screen widget
-            Bundle myOptions = mAppWidgetManager.getAppWidgetOptions (id);
-            boolean isKeyguard = false;
-            if (WidgetUtils.isTextClockAvailable()) {
-                // This is only available on API 17+, make sure we are not calling it on API16
-                // This generates an API level Lint warning, ignore it
-                int category = myOptions.getInt(AppWidgetManager.OPTION_APPWIDGET_HOST_CATEGORY, -1);
-                isKeyguard = category == AppWidgetProviderInfo.WIDGET_CATEGORY_KEYGUARD;
-            }
-            if (D) Log.d(TAG, "For Widget id " + id + " isKeyguard is set to " + isKeyguard);
+            // The size dependent decisions, including whether its a home or a lock screen widget
+            final LayoutPlan plan = LayoutPlan.get(this, mAppWidgetManager, id, digitalClock);
+            if (D) Log.d(TAG, "For Widget id " + id + " isKeyguard is set to " + plan.isKeyguard);
 
             // Determine which layout to use
-            boolean smallWidget = showWeather && showWeatherWhenMinimized
-                    && WidgetUtils.showSmallWidget(this, id, digitalClock, isKeyguard);
+            boolean smallWidget = showWeather && showWeatherWhenMinimized && plan.showSmallWidget;
             if (smallWidget) {
                 // The small widget is only shown if weather needs to be shown
                 // and there is not enough space for the full weather widget and
                 // the user had selected to show the weather when minimized (default ON)
-                remoteViews = new RemoteViews(getPackageName(), R.layout.appwidget_small);
+                remoteViews = new WidgetRenderState(R.layout.appwidget_small);
                 showCalendar = false;
             } else {
-                remoteViews = new RemoteViews(getPackageName(), R.layout.appwidget);
+                remoteViews = new WidgetRenderState(R.layout.appwidget);
                 // show calendar if enabled and events available and enough space available
-                showCalendar = Preferences.showCalendar(this) && !mHideCalendar
-                        && WidgetUtils.canFitCalendar(this, id, digitalClock);
+                showCalendar = mSettings.showCalendar && !mHideCalendar && plan.canFitCalendar;
             }
 
             // Hide the Loading indicator
             remoteViews.setViewVisibility(R.id.loading_indicator, View.GONE);
 
             // Always Refresh the Clock widget
+            long stageStart = RenderStats.start();
             refreshClock(remoteViews, smallWidget, digitalClock);
-            refreshAlarmStatus(remoteViews, smallWidget);
 
             // Refresh the time if using TextView Clock (API 16)
             if(!WidgetUtils.isTextClockAvailable()) {
                 refreshTime(remoteViews, smallWidget);
             }
+            RenderStats.end(RenderStats.STAGE_CLOCK, stageStart);
+
+            stageStart = RenderStats.start();
+            refreshAlarmStatus(remoteViews, smallWidget);
+            RenderStats.end(RenderStats.STAGE_ALARM, stageStart);
 
             // Don't bother with Calendar if its not visible
             if (showCalendar) {
+                stageStart = RenderStats.start();
                 refreshCalendar(remoteViews, id);
+                RenderStats.end(RenderStats.STAGE_CALENDAR, stageStart);
             }
             // Hide the calendar panel if not visible
             remoteViews.setViewVisibility(R.id.calendar_panel,
                     showCalendar ? View.VISIBLE : View.GONE);
 
-            boolean canFitWeather = smallWidget
-                    || WidgetUtils.canFitWeather(this, id, digitalClock, isKeyguard);
-            boolean canFitTimestamp = smallWidget
-                    || WidgetUtils.canFitTimestamp(this, id, digitalClock);
+            boolean canFitWeather = smallWidget || plan.canFitWeather;
+            boolean canFitTimestamp = smallWidget || plan.canFitTimestamp;
             // Now, if we need to show the actual weather, do so
             if (showWeather && canFitWeather) {
-                WeatherInfo weatherInfo = Preferences.getCachedWeatherInfo(this);
-
-                if (weatherInfo != null) {
-                    setWeatherData(remoteViews, smallWidget, weatherInfo);
-                } else {
-                    setNoWeatherData(remoteViews, smallWidget);
-                }
+                remoteViews.putAll(getWeatherViews(smallWidget));
             }
             remoteViews.setViewVisibility(R.id.update_time,
                     (showWeather && canFitWeather && canFitTimestamp) ? View.VISIBLE : View.GONE);
@@ -184,27 +274,27 @@ public class ClockWidgetService extends IntentService {
 
             // Resize the clock font if needed
             if (digitalClock) {
-                float ratio = WidgetUtils.getScaleRatio(this, id);
-                setClockSize(remoteViews, ratio);
+                setClockSize(remoteViews, plan.clockFontSize);
             }
 
             // Set the widget background color/transparency
-            int backColor = Preferences.clockBackgroundColor(this);
-            int backTrans = Preferences.clockBackgroundTransparency(this);
-            backColor = (backTrans << 24) | (backColor & 0xFFFFFF);
+            int backColor = mSettings.backgroundColor();
             remoteViews.setInt(R.id.clock_panel, "setBackgroundColor", backColor);
             remoteViews.setInt(R.id.calendar_panel, "setBackgroundColor", backColor);
             remoteViews.setInt(R.id.weather_panel, "setBackgroundColor", backColor);
 
-            // Do the update
-            mAppWidgetManager.updateAppWidget(id, remoteViews);
+            // Do the update, only sending what changed since the last one
+            stageStart = RenderStats.start();
+            WidgetRenderState.publish(mAppWidgetManager, getPackageName(), id, remoteViews);
+            RenderStats.end(RenderStats.STAGE_PUBLISH, stageStart);
+            RenderStats.end(RenderStats.STAGE_TOTAL, renderStart);
         }
     }
 
     //===============================================================================================
     // Clock related functionality
     //===============================================================================================
-    private void refreshClock(RemoteViews clockViews, boolean smallWidget, boolean digitalClock) {
+    private void refreshClock(WidgetRenderState clockViews, boolean smallWidget, boolean digitalClock) {
         // Analog or Digital clock
         if (digitalClock) {
             // Hours/Minutes is specific to Digital, set it's size
@@ -228,7 +318,7 @@ public class ClockWidgetService extends IntentService {
     }
 
     // API 16 TextView Clock support
-    private void refreshTime(RemoteViews clockViews, boolean smallWidget) {
+    private void refreshTime(WidgetRenderState clockViews, boolean smallWidget) {
         Locale locale = Locale.getDefault();
         Date now = new Date();
         String dateFormat = getString(R.string.abbrev_wday_month_day_no_year);
@@ -240,14 +330,14 @@ public class ClockWidgetService extends IntentService {
                 locale).format(now);
 
         // Hours
-        if (Preferences.useBoldFontForHours(this)) {
+        if (mSettings.useBoldFontForHours) {
             clockViews.setTextViewText(R.id.clock1_bold, hours);
         } else {
             clockViews.setTextViewText(R.id.clock1_regular, hours);
         }
 
         // Minutes
-        if (Preferences.useBoldFontForMinutes(this)) {
+        if (mSettings.useBoldFontForMinutes) {
             clockViews.setTextViewText(R.id.clock2_bold, minutes);
         } else {
             clockViews.setTextViewText(R.id.clock2_regular, minutes);
@@ -255,7 +345,7 @@ public class ClockWidgetService extends IntentService {
 
         // Date and Alarm font
         if (!smallWidget) {
-            if (Preferences.useBoldFontForDateAndAlarms(this)) {
+            if (mSettings.useBoldFontForDateAndAlarms) {
                 clockViews.setTextViewText(R.id.date_bold, date);
             } else {
                 clockViews.setTextViewText(R.id.date_regular, date);
@@ -264,16 +354,16 @@ public class ClockWidgetService extends IntentService {
             clockViews.setTextViewText(R.id.date, date);
         }
 
-        if (!DateFormat.is24HourFormat(this) && Preferences.showAmPmIndicator(this)) {
+        if (!DateFormat.is24HourFormat(this) && mSettings.showAmPmIndicator) {
             clockViews.setTextViewText(R.id.clock_ampm, amPM);
         }
     }
 
-    private void refreshClockFont(RemoteViews clockViews, boolean smallWidget) {
-        int color = Preferences.clockFontColor(this);
+    private void refreshClockFont(WidgetRenderState clockViews, boolean smallWidget) {
+        int color = mSettings.clockFontColor;
 
         // Hours
-        if (Preferences.useBoldFontForHours(this)) {
+        if (mSettings.useBoldFontForHours) {
             clockViews.setViewVisibility(R.id.clock1_bold, View.VISIBLE);
             clockViews.setViewVisibility(R.id.clock1_regular, View.GONE);
             clockViews.setTextColor(R.id.clock1_bold, color);
@@ -284,7 +374,7 @@ public class ClockWidgetService extends IntentService {
         }
 
         // Minutes
-        if (Preferences.useBoldFontForMinutes(this)) {
+        if (mSettings.useBoldFontForMinutes) {
             clockViews.setViewVisibility(R.id.clock2_bold, View.VISIBLE);
             clockViews.setViewVisibility(R.id.clock2_regular, View.GONE);
             clockViews.setTextColor(R.id.clock2_bold, color);
@@ -295,7 +385,7 @@ public class ClockWidgetService extends IntentService {
         }
 
         // Show the AM/PM indicator
-        if (!DateFormat.is24HourFormat(this) && Preferences.showAmPmIndicator(this)) {
+        if (!DateFormat.is24HourFormat(this) && mSettings.showAmPmIndicator) {
             clockViews.setViewVisibility(R.id.clock_ampm, View.VISIBLE);
             clockViews.setTextColor(R.id.clock_ampm, color);
         } else {
@@ -303,12 +393,12 @@ public class ClockWidgetService extends IntentService {
         }
     }
 
-    private void refreshDateAlarmFont(RemoteViews clockViews, boolean smallWidget) {
-        int color = Preferences.clockFontColor(this);
+    private void refreshDateAlarmFont(WidgetRenderState clockViews, boolean smallWidget) {
+        int color = mSettings.clockFontColor;
 
         // Date and Alarm font
         if (!smallWidget) {
-            if (Preferences.useBoldFontForDateAndAlarms(this)) {
+            if (mSettings.useBoldFontForDateAndAlarms) {
                 clockViews.setViewVisibility(R.id.date_bold, View.VISIBLE);
                 clockViews.setViewVisibility(R.id.date_regular, View.GONE);
                 clockViews.setTextColor(R.id.date_bold, color);
@@ -326,12 +416,11 @@ public class ClockWidgetService extends IntentService {
         clockViews.setViewVisibility(R.id.date_alarm, View.VISIBLE);
     }
 
-    private void setClockSize(RemoteViews clockViews, float scale) {
-        float fontSize = getResources().getDimension(R.dimen.widget_big_font_size);
-        clockViews.setTextViewTextSize(R.id.clock1_bold, TypedValue.COMPLEX_UNIT_PX, fontSize * scale);
-        clockViews.setTextViewTextSize(R.id.clock1_regular, TypedValue.COMPLEX_UNIT_PX, fontSize * scale);
-        clockViews.setTextViewTextSize(R.id.clock2_bold, TypedValue.COMPLEX_UNIT_PX, fontSize * scale);
-        clockViews.setTextViewTextSize(R.id.clock2_regular, TypedValue.COMPLEX_UNIT_PX, fontSize * scale);
+    private void setClockSize(WidgetRenderState clockViews, float fontSize) {
+        clockViews.setTextViewTextSize(R.id.clock1_bold, TypedValue.COMPLEX_UNIT_PX, fontSize);
+        clockViews.setTextViewTextSize(R.id.clock1_regular, TypedValue.COMPLEX_UNIT_PX, fontSize);
+        clockViews.setTextViewTextSize(R.id.clock2_bold, TypedValue.COMPLEX_UNIT_PX, fontSize);
+        clockViews.setTextViewTextSize(R.id.clock2_regular, TypedValue.COMPLEX_UNIT_PX, fontSize);
     }
 
     private String getHourFormat() {
@@ -347,12 +436,12 @@ public class ClockWidgetService extends IntentService {
     //===============================================================================================
     // Alarm related functionality
     //===============================================================================================
-    private void refreshAlarmStatus(RemoteViews alarmViews, boolean smallWidget) {
-        if (Preferences.showAlarm(this)) {
+    private void refreshAlarmStatus(WidgetRenderState alarmViews, boolean smallWidget) {
+        if (mSettings.showAlarm) {
             String nextAlarm = getNextAlarm();
             if (!TextUtils.isEmpty(nextAlarm)) {
                 // An alarm is set, deal with displaying it
-                int color = Preferences.clockAlarmFontColor(this);
+                int color = mSettings.clockAlarmFontColor;
                 final Resources res = getResources();
 
                 // Overlay the selected color on the alarm icon and set the imageview
@@ -361,7 +450,7 @@ public class ClockWidgetService extends IntentService {
                 alarmViews.setViewVisibility(R.id.alarm_icon, View.VISIBLE);
 
                 if (!smallWidget) {
-                    if (Preferences.useBoldFontForDateAndAlarms(this)) {
+                    if (mSettings.useBoldFontForDateAndAlarms) {
                         alarmViews.setTextViewText(R.id.nextAlarm_bold, nextAlarm);
                         alarmViews.setViewVisibility(R.id.nextAlarm_bold, View.VISIBLE);
                         alarmViews.setViewVisibility(R.id.nextAlarm_regular, View.GONE);
@@ -416,13 +505,93 @@ public class ClockWidgetService extends IntentService {
     // Weather related functionality
     //===============================================================================================
     /**
-     * Display the weather information
+     * Returns the weather actions for the widget size, reusing those of the last render if
+     * neither the weather data nor anything else they depend on changed since
+     */
+    private WidgetRenderState getWeatherViews(boolean smallWidget) {
+        long stageStart = RenderStats.start();
+        final WeatherSnapshot weather = WeatherSnapshot.get(this);
+        RenderStats.end(RenderStats.STAGE_WEATHER_DECODE, stageStart);
+
+        final int tier = weather.info != null ? WeatherFreshness.getTier(this, weather.info,
+                System.currentTimeMillis()) : WeatherFreshness.TIER_EXPIRED;
+        if (tier != WeatherFreshness.TIER_FRESH && weather.info != null) {
+            WeatherFreshness.revalidate(this);
+        }
+
+        final boolean is24Hour = DateFormat.is24HourFormat(this);
+        final Locale locale = getResources().getConfiguration().locale;
+        final String timeZone = TimeZone.getDefault().getID();
+        // Only the no data message names the provider
+        final String providerLabel = tier == WeatherFreshness.TIER_EXPIRED
+                ? CMWeatherManager.getInstance(mContext).getActiveWeatherServiceProviderLabel()
+                : null;
+        final int index = smallWidget ? 1 : 0;
+        synchronized (sWeatherRenders) {
+            WeatherRender last = sWeatherRenders[index];
+            if (last != null && last.generation == weather.generation && last.tier == tier
+                    && last.settings == mSettings && last.is24Hour == is24Hour
+                    && last.locale.equals(locale) && last.timeZone.equals(timeZone)
+                    && TextUtils.equals(last.providerLabel, providerLabel)) {
+                if (D) Log.v(TAG, "Reusing weather views of generation " + weather.generation);
+                return last.views;
+            }
+        }
+
+        stageStart = RenderStats.start();
+        // Only the recorded actions are used, the layout is the one of the widget
+        final WidgetRenderState views = new WidgetRenderState(0);
+        if (tier != WeatherFreshness.TIER_EXPIRED) {
+            setWeatherData(views, smallWidget, weather.info, weather.getDisplay(this),
+                    tier == WeatherFreshness.TIER_STALE);
+        } else {
+            setNoWeatherData(views, smallWidget, providerLabel);
+        }
+        RenderStats.end(RenderStats.STAGE_WEATHER_VIEWS, stageStart);
+
+        synchronized (sWeatherRenders) {
+            sWeatherRenders[index] = new WeatherRender(weather.generation, tier, mSettings,
+                    is24Hour, locale, timeZone, providerLabel, views);
+        }
+        return views;
+    }
+
+    /**
+     * The weather actions of a render and what they were derived from
+     */
+    private static class WeatherRender {
+        final long generation;
+        final int tier;
+        final WidgetSettings settings;
+        final boolean is24Hour;
+        final Locale locale;
+        final String timeZone;
+        final String providerLabel;
+        final WidgetRenderState views;
+
+        WeatherRender(long generation, int tier, WidgetSettings settings, boolean is24Hour,
+                Locale locale, String timeZone, String providerLabel, WidgetRenderState views) {
+            this.generation = generation;
+            this.tier = tier;
+            this.settings = settings;
+            this.is24Hour = is24Hour;
+            this.locale = locale;
+            this.timeZone = timeZone;
+            this.providerLabel = providerLabel;
+            this.views = views;
+        }
+    }
+
+    /**
+     * Display the weather information, dimmed if it is stale and an update is pending. The
+     * strings were formatted when the weather was stored, only the unit system is picked here.
      */
-    private void setWeatherData(RemoteViews weatherViews, boolean smallWidget, WeatherInfo w) {
-        int color = Preferences.weatherFontColor(this);
-        int timestampColor = Preferences.weatherTimestampFontColor(this);
-        String iconsSet = Preferences.getWeatherIconSet(this);
-        final boolean useMetric = Preferences.useMetricUnits(mContext);
+    private void setWeatherData(WidgetRenderState weatherViews, boolean smallWidget, WeatherInfo w,
+            WeatherDisplay display, boolean stale) {
+        int color = mSettings.weatherFontColor;
+        int timestampColor = mSettings.weatherTimestampFontColor;
+        String iconsSet = mSettings.weatherIconSet;
+        final int units = WeatherDisplay.units(mSettings.useMetricUnits);
 
         // Reset no weather visibility
         weatherViews.setViewVisibility(R.id.weather_no_data, View.GONE);
@@ -432,60 +601,39 @@ public class ClockWidgetService extends IntentService {
         int resId = IconUtils.getWeatherIconResource(mContext, iconsSet, w.getConditionCode());
         weatherViews.setViewVisibility(R.id.weather_image, View.VISIBLE);
         if (resId != 0) {
-            weatherViews.setImageViewResource(R.id.weather_image,
-                    IconUtils.getWeatherIconResource(mContext, iconsSet, w.getConditionCode()));
+            weatherViews.setImageViewResource(R.id.weather_image, resId);
         } else {
             weatherViews.setImageViewBitmap(R.id.weather_image,
                     IconUtils.getWeatherIconBitmap(mContext, iconsSet, color,
                             w.getConditionCode()));
         }
+        weatherViews.setInt(R.id.weather_image, "setImageAlpha",
+                stale ? STALE_WEATHER_IMAGE_ALPHA : 255);
 
         // Weather Condition
-        weatherViews.setTextViewText(R.id.weather_condition,
-                Utils.resolveWeatherCondition(mContext, w.getConditionCode()));
+        weatherViews.setTextViewText(R.id.weather_condition, display.condition);
         weatherViews.setViewVisibility(R.id.weather_condition, View.VISIBLE);
         weatherViews.setTextColor(R.id.weather_condition, color);
 
         // Weather Temps Panel
-        double temp = w.getTemperature();
-        double todaysLow = w.getTodaysLow();
-        double todaysHigh = w.getTodaysHigh();
-        int tempUnit = w.getTemperatureUnit();
-        if (tempUnit == FAHRENHEIT && useMetric) {
-            temp = WeatherUtils.fahrenheitToCelsius(temp);
-            todaysLow = WeatherUtils.fahrenheitToCelsius(todaysLow);
-            todaysHigh = WeatherUtils.fahrenheitToCelsius(todaysHigh);
-            tempUnit = CELSIUS;
-        } else if (tempUnit == CELSIUS && !useMetric) {
-            temp = WeatherUtils.celsiusToFahrenheit(temp);
-            todaysLow = WeatherUtils.celsiusToFahrenheit(todaysLow);
-            todaysHigh = WeatherUtils.celsiusToFahrenheit(todaysHigh);
-            tempUnit = FAHRENHEIT;
-        }
-        weatherViews.setTextViewText(R.id.weather_temp,
-                WeatherUtils.formatTemperature(temp, tempUnit));
+        weatherViews.setTextViewText(R.id.weather_temp, display.temperature[units]);
         weatherViews.setViewVisibility(R.id.weather_temps_panel, View.VISIBLE);
         weatherViews.setTextColor(R.id.weather_temp, color);
 
         if (!smallWidget) {
             // Display the full weather information panel items
             // Load the preferences
-            boolean showLocation = Preferences.showWeatherLocation(this);
-            boolean showTimestamp = Preferences.showWeatherTimestamp(this);
+            boolean showLocation = mSettings.showWeatherLocation;
+            boolean showTimestamp = mSettings.showWeatherTimestamp;
 
             // City
-            weatherViews.setTextViewText(R.id.weather_city, w.getCity());
+            weatherViews.setTextViewText(R.id.weather_city, display.city);
             weatherViews.setViewVisibility(R.id.weather_city, showLocation ? View.VISIBLE : View.GONE);
             weatherViews.setTextColor(R.id.weather_city, color);
 
             // Weather Update Time
             if (showTimestamp) {
-                Date updateTime = new Date(w.getTimestamp());
-                StringBuilder sb = new StringBuilder();
-                sb.append(DateFormat.format("E", updateTime));
-                sb.append(" ");
-                sb.append(DateFormat.getTimeFormat(this).format(updateTime));
-                weatherViews.setTextViewText(R.id.update_time, sb.toString());
+                weatherViews.setTextViewText(R.id.update_time, display.updateTime);
                 weatherViews.setViewVisibility(R.id.update_time, View.VISIBLE);
                 weatherViews.setTextColor(R.id.update_time, timestampColor);
             } else {
@@ -493,10 +641,9 @@ public class ClockWidgetService extends IntentService {
             }
 
             // Weather Temps Panel additional items
-            boolean invertLowhigh = Preferences.invertLowHighTemperature(this);
-            final String low = WeatherUtils.formatTemperature(todaysLow, tempUnit);
-            final String high = WeatherUtils.formatTemperature(todaysHigh, tempUnit);
-            weatherViews.setTextViewText(R.id.weather_low_high, invertLowhigh ? high + " | " + low : low + " | " + high);
+            boolean invertLowhigh = mSettings.invertLowHighTemperature;
+            weatherViews.setTextViewText(R.id.weather_low_high,
+                    invertLowhigh ? display.highLow[units] : display.lowHigh[units]);
             weatherViews.setTextColor(R.id.weather_low_high, color);
         }
 
@@ -507,13 +654,12 @@ public class ClockWidgetService extends IntentService {
     /**
      * There is no data to display, display 'empty' fields and the 'Tap to reload' message
      */
-    private void setNoWeatherData(RemoteViews weatherViews, boolean smallWidget) {
-        int color = Preferences.weatherFontColor(this);
-        boolean firstRun = Preferences.isFirstWeatherUpdate(this);
+    private void setNoWeatherData(WidgetRenderState weatherViews, boolean smallWidget,
+            String activeProviderLabel) {
+        int color = mSettings.weatherFontColor;
+        boolean firstRun = mSettings.isFirstWeatherUpdate;
 
         // Hide the normal weather stuff
-        final CMWeatherManager weatherManager = CMWeatherManager.getInstance(mContext);
-        final String activeProviderLabel = weatherManager.getActiveWeatherServiceProviderLabel();
         String noData;
         if (activeProviderLabel != null) {
             noData = getString(R.string.weather_cannot_reach_provider, activeProviderLabel);
@@ -559,7 +705,7 @@ public class ClockWidgetService extends IntentService {
         }
     }
 
-    private void setWeatherClickListener(RemoteViews weatherViews, boolean forceRefresh) {
+    private void setWeatherClickListener(WidgetRenderState weatherViews, boolean forceRefresh) {
         // Register an onClickListener on the Weather panel, default action is show forecast
         PendingIntent pi = null;
         if (forceRefresh) {
@@ -574,7 +720,7 @@ public class ClockWidgetService extends IntentService {
         weatherViews.setOnClickPendingIntent(R.id.weather_panel, pi);
     }
 
-    private void setWeatherClickListener(RemoteViews weatherViews) {
+    private void setWeatherClickListener(WidgetRenderState weatherViews) {
         PendingIntent pi = PendingIntent.getActivity(mContext, 0,
                 new Intent("cyanogenmod.intent.action.MANAGE_WEATHER_PROVIDER_SERVICES"),
                         PendingIntent.FLAG_UPDATE_CURRENT);
@@ -584,13 +730,13 @@ public class ClockWidgetService extends IntentService {
     //===============================================================================================
     // Calendar related functionality
     //===============================================================================================
-    private void refreshCalendar(RemoteViews calendarViews, int widgetId) {
+    private void refreshCalendar(WidgetRenderState calendarViews, int widgetId) {
         final Resources res = getResources();
         // Calendar icon: Overlay the selected color and set the imageview
-        int color = Preferences.calendarFontColor(this);
+        int color = mSettings.calendarFontColor;
 
         // Hide the icon if preference set
-        if (Preferences.showCalendarIcon(this)) {
+        if (mSettings.showCalendarIcon) {
             calendarViews.setImageViewBitmap(R.id.calendar_icon,
                     IconUtils.getOverlaidBitmap(res, R.drawable.ic_lock_idle_calendar, color));
         } else {
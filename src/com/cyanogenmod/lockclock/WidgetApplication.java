@@ -17,6 +17,9 @@
 package com.cyanogenmod.lockclock;
 
 import com.cyanogenmod.lockclock.misc.Constants;
+import com.cyanogenmod.lockclock.misc.IconUtils;
+import com.cyanogenmod.lockclock.misc.LayoutPlan;
+import com.cyanogenmod.lockclock.weather.ConditionResources;
 import com.cyanogenmod.lockclock.ClockWidgetProvider;
 import com.cyanogenmod.lockclock.ClockWidgetService;
 
@@ -27,6 +30,7 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.res.Configuration;
 import android.util.Log;
 
 public class WidgetApplication extends Application {
@@ -36,6 +40,49 @@ public class WidgetApplication extends Application {
 
     private BroadcastReceiver mTickReceiver = null;
 
+    /**
+     * Drops the resources cached for an external icon package once it changes
+     */
+    private final BroadcastReceiver mPackageReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (intent.getData() == null) {
+                return;
+            }
+            final String packageName = intent.getData().getSchemeSpecificPart();
+            if (D) Log.d(TAG, "Package " + packageName + " changed: " + intent.getAction());
+            ConditionResources.invalidatePackage(packageName);
+            IconUtils.invalidatePackage(packageName);
+        }
+    };
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        registerReceiver(mPackageReceiver, filter);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+        super.onConfigurationChanged(newConfig);
+        // Dimensions and densities may have changed, recompute the widget layouts
+        LayoutPlan.invalidateAll();
+        // Resources may resolve differently, e.g. for a new locale
+        ConditionResources.invalidate();
+        // Bitmaps decoded for the default density were scaled for the old display
+        IconUtils.invalidate();
+    }
+
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        IconUtils.trimMemory(level);
+    }
+
     /**
      * BroadReceiver and supporting functions used for handling clock ticks
      * for the TextView clock support (API 16) by scheduling a repeating
@@ -19,142 +19,109 @@ package com.cyanogenmod.lockclock.calendar;
 
 import com.cyanogenmod.lockclock.misc.Constants;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-
+/**
+ * The calendar events to show, in order of their start, and the start of the first event
+ * following them. The events are held in an {@link EventStore}, so finding the events
+ * around a time is a binary search rather than a scan.
+ */
 public class CalendarInfo {
-    private List<EventInfo> mEventsList;
-    private long mFollowingEventStart;
+    private final EventStore mEvents;
+    private final long mFollowingEventStart;
 
     public CalendarInfo() {
-        mEventsList = new ArrayList<EventInfo>(Constants.MAX_CALENDAR_ITEMS);
-        mFollowingEventStart = 0;
+        this(EventStore.EMPTY, 0);
+    }
+
+    private CalendarInfo(EventStore events, long followingEventStart) {
+        mEvents = events;
+        mFollowingEventStart = followingEventStart;
     }
 
-    public List<EventInfo> getEvents() {
-        return mEventsList;
+    public int getEventCount() {
+        return mEvents.size();
     }
 
     public boolean hasEvents() {
-        return !mEventsList.isEmpty();
+        return mEvents.size() > 0;
+    }
+
+    public long getEventId(int index) {
+        return mEvents.getId(index);
     }
 
-    public void clearEvents() {
-        mEventsList.clear();
-        mFollowingEventStart = 0;
+    public String getEventTitle(int index) {
+        return mEvents.getTitle(index);
     }
 
-    public void addEvent(EventInfo event) {
-        mEventsList.add(event);
-        Collections.sort(mEventsList);
+    public String getEventDetails(int index) {
+        return mEvents.getDetails(index);
     }
 
-    public void setFollowingEventStart(long start) {
-        mFollowingEventStart = start;
+    public long getEventStart(int index) {
+        return mEvents.getStart(index);
+    }
+
+    public long getEventEnd(int index) {
+        return mEvents.getEnd(index);
+    }
+
+    public boolean isAllDayEvent(int index) {
+        return mEvents.isAllDay(index);
     }
 
     public long getFollowingEventStart() {
         return mFollowingEventStart;
     }
 
+    /**
+     * @return The number of events starting before the time, they are the first ones
+     */
+    public int countStartingBefore(long time) {
+        return mEvents.firstStartingAtOrAfter(time);
+    }
+
+    /**
+     * @return The first start or end of an event after the time, Long.MAX_VALUE if none
+     */
+    public long getNextBoundaryAfter(long time) {
+        return mEvents.getNextBoundaryAfter(time);
+    }
+
+    /**
+     * @return Whether both show the same events, regardless of the following event
+     */
+    public boolean hasSameEvents(CalendarInfo other) {
+        return mEvents.contentEquals(other.mEvents);
+    }
+
     //===============================================================================================
-    // Calendar event information class
+    // Calendar event information builder
     //===============================================================================================
     /**
-     * EventInfo is a class that represents an event in the widget
+     * Collects the events in any order, they are sorted once when built
      */
-    public static class EventInfo implements Comparable<EventInfo> {
-        public String description;
-        public String title;
-
-        public long id;
-        public long start;
-        public long end;
-        public boolean allDay;
-
-        public EventInfo(long eventId, String title, String description, long start, long end,
-                boolean allDay) {
-            this.id = eventId;
-            this.title = title;
-            this.description = description;
-            this.start = start;
-            this.end = end;
-            this.allDay = allDay;
-        }
+    public static class Builder {
+        private final EventStore.Builder mEvents;
+        private long mFollowingEventStart;
 
-        @Override
-        public String toString() {
-            StringBuilder builder = new StringBuilder();
-            builder.append("EventInfo [Title=");
-            builder.append(title);
-            builder.append(", id=");
-            builder.append(id);
-            builder.append(", description=");
-            builder.append(description);
-            builder.append("]");
-            return builder.toString();
+        public Builder() {
+            mEvents = new EventStore.Builder(Constants.MAX_CALENDAR_ITEMS);
         }
 
-        @Override
-        public int hashCode() {
-            final int prime = 31;
-            int result = 1;
-            result = prime * result + (allDay ? 1231 : 1237);
-            result = prime * result + (int) (id ^ (id >>> 32));
-            result = prime * result + (int) (end ^ (end >>> 32));
-            result = prime * result + (int) (start ^ (start >>> 32));
-            result = prime * result + ((title == null) ? 0 : title.hashCode());
-            result = prime * result + ((description == null) ? 0 : description.hashCode());
-            return result;
+        public Builder addEvent(long eventId, String title, String details, long start,
+                long end, boolean allDay) {
+            mEvents.add(eventId, title, null, null, details, start, end,
+                    allDay ? EventStore.FLAG_ALL_DAY : 0);
+            return this;
         }
 
-        @Override
-        public boolean equals(Object obj) {
-            if (this == obj)
-                return true;
-            if (obj == null)
-                return false;
-            if (getClass() != obj.getClass())
-                return false;
-            EventInfo other = (EventInfo) obj;
-            if (id != other.id)
-                return false;
-            if (allDay != other.allDay)
-                return false;
-            if (end != other.end)
-                return false;
-            if (start != other.start)
-                return false;
-            if (title == null) {
-                if (other.title != null)
-                    return false;
-            } else if (!title.equals(other.title))
-                return false;
-            if (description == null) {
-                if (other.description != null)
-                    return false;
-            } else if (!description.equals(other.description)) {
-                return false;
-            }
-            return true;
+        public Builder setFollowingEventStart(long start) {
+            mFollowingEventStart = start;
+            return this;
         }
 
-        @Override
-        public int compareTo(EventInfo other) {
-            if (start < other.start) {
-                return -1;
-            } else if (start > other.start) {
-                return 1;
-            }
-
-            if (allDay && !other.allDay) {
-                return -1;
-            } else if (!allDay && other.allDay) {
-                return 1;
-            }
-
-            return 0;
+        public CalendarInfo build() {
+            return new CalendarInfo(mEvents.build(), mFollowingEventStart);
         }
     }
 }
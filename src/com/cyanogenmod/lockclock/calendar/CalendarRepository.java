@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock.calendar;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.database.ContentObserver;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.provider.CalendarContract;
+import android.text.format.DateFormat;
+import android.util.Log;
+
+import com.cyanogenmod.lockclock.ClockWidgetService;
+import com.cyanogenmod.lockclock.misc.Constants;
+import com.cyanogenmod.lockclock.misc.WidgetSettings;
+
+import java.util.Calendar;
+import java.util.Date;
+
+/**
+ * Process wide source of the calendar events shown by the widgets. While a widget shows the
+ * calendar, changes to the calendar provider are observed. A change, or a PROVIDER_CHANGED
+ * broadcast, only refreshes the widgets if the events they would show differ from the ones
+ * loaded last, so syncs touching other calendars or events outside the lookahead window
+ * cost a query but no render. The events are sliced from a {@link CalendarWindow} of several
+ * days, which is only queried again when the calendar changes or the window runs out.
+ * <p>
+ * The refreshes at the next event boundary do not wake the device. If boundaries passed while
+ * it slept, the widgets jump to the current events in one refresh once the screen turns on.
+ */
+public final class CalendarRepository {
+    private static final String TAG = "CalendarRepository";
+    private static final boolean D = Constants.DEBUG;
+
+    static final long UPCOMING_EVENT_HOURS_IN_MILLIS =
+            Constants.CALENDAR_UPCOMING_EVENTS_FROM_HOUR * 60L * 60L * 1000L;
+    static final long DAY_IN_MILLIS = 24L * 60L * 60L * 1000L;
+
+    // Changes arriving within this window after the first one are checked at once. A sync
+    // tends to notify for every event it writes
+    private static final long SYNC_DELAY_MS = 1000L;
+
+    private static final int MSG_SYNC = 1;
+
+    private static CalendarRepository sInstance;
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final ContentObserver mObserver;
+    private final BroadcastReceiver mScreenReceiver;
+    // Guarded by 'this'
+    private final EventDetailsCache mDetailsCache = new EventDetailsCache();
+
+    // Guarded by 'this'
+    private int mAttachCount;
+    private CalendarWindow mWindow;
+    private CalendarInfo mLatest;
+    // When the shown events are due to change next, 0 if no refresh is pending
+    private long mNextUpdateTime;
+
+    private CalendarRepository(Context context) {
+        mContext = context;
+
+        HandlerThread thread = new HandlerThread("calendar-repository");
+        thread.start();
+        mHandler = new Handler(thread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == MSG_SYNC) {
+                    sync();
+                }
+            }
+        };
+        mObserver = new ContentObserver(mHandler) {
+            @Override
+            public void onChange(boolean selfChange) {
+                if (D) Log.v(TAG, "Calendar provider changed");
+                requestSync();
+            }
+        };
+        mScreenReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                refreshIfDue();
+            }
+        };
+    }
+
+    public static synchronized CalendarRepository get(Context context) {
+        if (sInstance == null) {
+            sInstance = new CalendarRepository(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Observe the calendar provider for as long as a widget shows the calendar
+     */
+    synchronized void attach() {
+        if (mAttachCount++ == 0) {
+            if (D) Log.d(TAG, "Registering calendar observer");
+            try {
+                mContext.getContentResolver().registerContentObserver(
+                        CalendarContract.CONTENT_URI, true, mObserver);
+            } catch (SecurityException e) {
+                // No calendar permission, the PROVIDER_CHANGED broadcast still reaches us
+                Log.w(TAG, "Could not observe the calendar provider", e);
+            }
+            IntentFilter filter = new IntentFilter(Intent.ACTION_SCREEN_ON);
+            filter.addAction(Intent.ACTION_USER_PRESENT);
+            mContext.registerReceiver(mScreenReceiver, filter, null, mHandler);
+        }
+    }
+
+    synchronized void detach() {
+        if (mAttachCount > 0 && --mAttachCount == 0) {
+            if (D) Log.d(TAG, "Unregistering calendar observer");
+            mContext.getContentResolver().unregisterContentObserver(mObserver);
+            mContext.unregisterReceiver(mScreenReceiver);
+        }
+    }
+
+    /**
+     * Check the events for visible changes shortly, merging the requests arriving meanwhile
+     */
+    public void requestSync() {
+        if (!mHandler.hasMessages(MSG_SYNC)) {
+            mHandler.sendEmptyMessageDelayed(MSG_SYNC, SYNC_DELAY_MS);
+        }
+    }
+
+    /**
+     * Format the details of the events again on the next load, the locale, time zone or
+     * date changed
+     */
+    public synchronized void invalidateDetails() {
+        mDetailsCache.invalidate();
+    }
+
+    /**
+     * Load the events to show now and schedule the refresh at their next boundary. They are
+     * sliced from the cached window while it covers them.
+     */
+    CalendarInfo load() {
+        final WidgetSettings settings = WidgetSettings.get(mContext);
+        final long now = System.currentTimeMillis();
+        CalendarInfo info;
+        synchronized (this) {
+            if (mWindow == null || !mWindow.isValidFor(settings, now)) {
+                final CalendarWindow window = CalendarWindow.load(mContext, settings, now);
+                if (window != null) {
+                    mWindow = window;
+                }
+            } else if (D) {
+                Log.v(TAG, "Slicing the cached window");
+            }
+            if (mWindow != null && mWindow.isValidFor(settings, now)) {
+                info = mWindow.slice(mContext, settings, now, mDetailsCache);
+            } else {
+                // Keep showing what we had
+                info = mLatest != null ? mLatest : new CalendarInfo();
+            }
+            mLatest = info;
+        }
+        scheduleCalendarUpdate(info);
+        return info;
+    }
+
+    private void sync() {
+        final WidgetSettings settings = WidgetSettings.get(mContext);
+        final long now = System.currentTimeMillis();
+        final CalendarInfo info;
+        final boolean changed;
+        synchronized (this) {
+            if (mAttachCount == 0) {
+                // No widget shows the calendar, the next load queries it anyway
+                if (D) Log.v(TAG, "Not attached, skipping the sync");
+                mWindow = null;
+                return;
+            }
+            // The calendar changed, whatever was cached is outdated
+            final CalendarWindow window = CalendarWindow.load(mContext, settings, now);
+            if (window == null) {
+                return;
+            }
+            mWindow = window;
+            info = window.slice(mContext, settings, now, mDetailsCache);
+            changed = mLatest == null || !mLatest.hasSameEvents(info);
+            mLatest = info;
+        }
+
+        if (changed) {
+            // The widgets slice them from the new window once they are told
+            if (D) Log.d(TAG, "Visible events changed, refreshing the calendar");
+            Intent i = new Intent(mContext, ClockWidgetService.class);
+            i.setAction(ClockWidgetService.ACTION_REFRESH_CALENDAR);
+            mContext.startService(i);
+        } else {
+            if (D) Log.d(TAG, "No visible change");
+            // An event beyond the lookahead window may have moved
+            scheduleCalendarUpdate(info);
+        }
+    }
+
+    /**
+     * The screen turned on, refresh at once if an event boundary passed while it was off
+     * rather than waiting for the pending alarm to be delivered
+     */
+    private void refreshIfDue() {
+        synchronized (this) {
+            if (mNextUpdateTime == 0 || System.currentTimeMillis() < mNextUpdateTime) {
+                return;
+            }
+            // The refresh schedules the next one, USER_PRESENT after SCREEN_ON is a no-op
+            mNextUpdateTime = 0;
+        }
+        if (D) Log.d(TAG, "Event boundary passed while the screen was off, refreshing");
+        final AlarmManager am = (AlarmManager) mContext.getSystemService(Context.ALARM_SERVICE);
+        am.cancel(ClockWidgetService.getRefreshIntent(mContext));
+
+        Intent i = new Intent(mContext, ClockWidgetService.class);
+        i.setAction(ClockWidgetService.ACTION_REFRESH_CALENDAR);
+        mContext.startService(i);
+    }
+
+    private static long getMinUpdateFromNow(long now) {
+        // we update at least once a day
+        return now + DAY_IN_MILLIS;
+    }
+
+    static long getStartOfDay() {
+        Calendar cal = Calendar.getInstance();
+        cal.set(Calendar.HOUR_OF_DAY, 0);
+        cal.set(Calendar.MINUTE, 0);
+        cal.set(Calendar.SECOND, 0);
+        cal.set(Calendar.MILLISECOND, 0);
+        return cal.getTimeInMillis();
+    }
+
+    // ===============================================================================================
+    // Update timer related functionality
+    // ===============================================================================================
+    /**
+     * Calculates and returns the next time we should push widget updates.
+     */
+    private long calculateUpdateTime(CalendarInfo calendarInfo) {
+        final long now = System.currentTimeMillis();
+        final WidgetSettings settings = WidgetSettings.get(mContext);
+        final boolean highlightNext = settings.calendarHighlightUpcomingEvents;
+        long lookAhead = settings.lookAheadTimeInMs();
+        long minUpdateTime = getMinUpdateFromNow(now);
+
+        // Check if there is a calendar event earlier
+        minUpdateTime = Math.min(minUpdateTime, calendarInfo.getNextBoundaryAfter(now));
+
+        if (calendarInfo.getFollowingEventStart() > 0) {
+            // Make sure to update when the next event gets into the lookahead window
+            minUpdateTime = Math.min(minUpdateTime, calendarInfo.getFollowingEventStart()
+                    - lookAhead);
+        }
+
+        if (highlightNext) {
+            // Update at midnight and at 8pm if highlighting of upcoming events is enabled
+            final long startOfDay = getStartOfDay();
+            if (now < startOfDay + UPCOMING_EVENT_HOURS_IN_MILLIS
+                    && startOfDay + UPCOMING_EVENT_HOURS_IN_MILLIS < minUpdateTime) {
+                minUpdateTime = startOfDay + UPCOMING_EVENT_HOURS_IN_MILLIS;
+            } else if (startOfDay + DAY_IN_MILLIS < minUpdateTime) {
+                minUpdateTime = startOfDay + DAY_IN_MILLIS;
+            }
+        }
+
+        // Construct a log entry in human readable form
+        if (D) {
+            Date date1 = new Date(now);
+            Date date2 = new Date(minUpdateTime);
+            Log.i(TAG, "cLock: It is now " + DateFormat.getTimeFormat(mContext).format(date1)
+                    + ", next widget update on " + DateFormat.getDateFormat(mContext).format(date2)
+                    + " at " + DateFormat.getTimeFormat(mContext).format(date2));
+        }
+
+        // Return the next update time
+        return minUpdateTime;
+    }
+
+    /**
+     * Schedule an alarm to trigger an update at the next weather refresh or at
+     * the next event time boundary (start/end).
+     */
+    private void scheduleCalendarUpdate(CalendarInfo calendarInfo) {
+        PendingIntent pi = ClockWidgetService.getRefreshIntent(mContext);
+        long updateTime = calculateUpdateTime(calendarInfo);
+
+        // Clear any old alarms and schedule the new alarm
+        // Nobody sees the widgets while the device sleeps, so the alarm does not wake it. A
+        // boundary passed meanwhile is caught up on by refreshIfDue once the screen turns on
+        AlarmManager am = (AlarmManager) mContext.getSystemService(Context.ALARM_SERVICE);
+        am.cancel(pi);
+        synchronized (this) {
+            mNextUpdateTime = Math.max(updateTime, 0);
+        }
+        if (updateTime > 0) {
+            am.set(AlarmManager.RTC, updateTime, pi);
+        }
+    }
+}
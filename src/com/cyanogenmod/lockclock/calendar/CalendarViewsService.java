@@ -16,21 +16,12 @@
 
 package com.cyanogenmod.lockclock.calendar;
 
-import android.app.AlarmManager;
-import android.app.PendingIntent;
 import android.content.ContentUris;
 import android.content.Context;
 import android.content.Intent;
-import android.database.Cursor;
 import android.graphics.Typeface;
-import android.net.Uri;
-import android.provider.CalendarContract;
 import android.provider.CalendarContract.Events;
 import android.text.SpannableString;
-import android.text.TextUtils;
-import android.text.format.DateFormat;
-import android.text.format.DateUtils;
-import android.text.format.Time;
 import android.text.style.StyleSpan;
 import android.util.Log;
 import android.widget.RemoteViews;
@@ -40,13 +31,12 @@ import android.widget.RemoteViewsService.RemoteViewsFactory;
 import com.cyanogenmod.lockclock.ClockWidgetProvider;
 import com.cyanogenmod.lockclock.ClockWidgetService;
 import com.cyanogenmod.lockclock.R;
-import com.cyanogenmod.lockclock.calendar.CalendarInfo.EventInfo;
 import com.cyanogenmod.lockclock.misc.Constants;
-import com.cyanogenmod.lockclock.misc.Preferences;
+import com.cyanogenmod.lockclock.misc.RenderStats;
+import com.cyanogenmod.lockclock.misc.WidgetSettings;
 
-import java.util.Calendar;
-import java.util.Date;
-import java.util.Set;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 
 public class CalendarViewsService extends RemoteViewsService {
 
@@ -55,31 +45,41 @@ public class CalendarViewsService extends RemoteViewsService {
         return new CalendarRemoteViewsFactory(this.getApplicationContext(), intent);
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        // This one stays bound as long as a widget shows the calendar, which makes it the
+        // easier one to catch with dumpsys
+        RenderStats.dump(pw);
+    }
+
 }
 
 class CalendarRemoteViewsFactory implements RemoteViewsFactory {
     private static final String TAG = "CalendarRemoteViewsFactory";
     private static boolean D = Constants.DEBUG;
 
-    private static final long UPCOMING_EVENT_HOURS_IN_MILLIS =
-            Constants.CALENDAR_UPCOMING_EVENTS_FROM_HOUR * 60L * 60L * 1000L;
-    private static final long DAY_IN_MILLIS = 24L * 60L * 60L * 1000L;
-
     private Context mContext;
+    private CalendarRepository mRepository;
     private CalendarInfo mCalendarInfo = new CalendarInfo();
 
+    // The views of the events by position and what they were built from
+    private RemoteViews[] mItemViews = new RemoteViews[0];
+    private WidgetSettings mItemViewsSettings;
+    private long mItemViewsValidUntil;
+
     public CalendarRemoteViewsFactory(Context applicationContext, Intent intent) {
         mContext = applicationContext;
+        mRepository = CalendarRepository.get(applicationContext);
     }
 
     @Override
     public int getCount() {
-        return mCalendarInfo.getEvents().size();
+        return mCalendarInfo.getEventCount();
     }
 
     @Override
     public long getItemId(int position) {
-        return mCalendarInfo.getEvents().get(position).id;
+        return mCalendarInfo.getEventId(position);
     }
 
     @Override
@@ -98,62 +98,81 @@ class CalendarRemoteViewsFactory implements RemoteViewsFactory {
         return spanText;
     }
 
-    private long getStartOfDay() {
-        Calendar cal = Calendar.getInstance();
-        cal.set(Calendar.HOUR_OF_DAY, 0);
-        cal.set(Calendar.MINUTE, 0);
-        cal.set(Calendar.SECOND, 0);
-        cal.set(Calendar.MILLISECOND, 0);
-        return cal.getTimeInMillis();
-    }
-
-    private boolean isUpcoming(EventInfo event) {
-        long startOfDay = getStartOfDay();
-        long now = System.currentTimeMillis();
+    /**
+     * @return The number of events to highlight as upcoming, they are the first ones
+     */
+    private int countUpcoming(long startOfDay, long now) {
         long endOfUpcoming;
 
-        if (startOfDay + UPCOMING_EVENT_HOURS_IN_MILLIS > now) {
-            endOfUpcoming = startOfDay + DAY_IN_MILLIS;
+        if (startOfDay + CalendarRepository.UPCOMING_EVENT_HOURS_IN_MILLIS > now) {
+            endOfUpcoming = startOfDay + CalendarRepository.DAY_IN_MILLIS;
         } else {
-            endOfUpcoming = startOfDay + 2 * DAY_IN_MILLIS;
+            endOfUpcoming = startOfDay + 2 * CalendarRepository.DAY_IN_MILLIS;
         }
-        return event.start < endOfUpcoming;
+        return mCalendarInfo.countStartingBefore(endOfUpcoming);
     }
 
-    @Override
-    public RemoteViews getViewAt(int position) {
-        if (position < 0 || position >= mCalendarInfo.getEvents().size()) {
-            return null;
+    /**
+     * @return When the set of upcoming events is determined differently next, at 8pm or at
+     * midnight
+     */
+    private static long getUpcomingSwitchTime(long startOfDay, long now) {
+        final long switchTime = startOfDay + CalendarRepository.UPCOMING_EVENT_HOURS_IN_MILLIS;
+        return now < switchTime ? switchTime : startOfDay + CalendarRepository.DAY_IN_MILLIS;
+    }
+
+    /**
+     * Build the views of all events against one snapshot of the settings and of the time of
+     * day, so the host asking for them while scrolling only reads them from the array
+     */
+    private void buildItemViews() {
+        final WidgetSettings settings = WidgetSettings.get(mContext);
+        final long now = System.currentTimeMillis();
+        final long startOfDay = CalendarRepository.getStartOfDay();
+        final boolean highlightNext = settings.calendarHighlightUpcomingEvents;
+        final int upcomingCount = highlightNext ? countUpcoming(startOfDay, now) : 0;
+        final int count = mCalendarInfo.getEventCount();
+        final RemoteViews[] itemViews = new RemoteViews[count];
+
+        for (int position = 0; position < count; position++) {
+            itemViews[position] = buildItemView(settings, position, position < upcomingCount);
         }
 
-        boolean highlightNext = Preferences.calendarHighlightUpcomingEvents(mContext);
-        boolean nextBold = Preferences.calendarUpcomingEventsBold(mContext);
+        mItemViews = itemViews;
+        mItemViewsSettings = settings;
+        mItemViewsValidUntil = highlightNext
+                ? getUpcomingSwitchTime(startOfDay, now) : Long.MAX_VALUE;
+    }
+
+    private RemoteViews buildItemView(WidgetSettings settings, int position, boolean upcoming) {
+        boolean nextBold = settings.calendarUpcomingEventsBold;
         int color, detailsColor;
         final RemoteViews itemViews = new RemoteViews(mContext.getPackageName(),
                 R.layout.calendar_item);
-        final EventInfo event = mCalendarInfo.getEvents().get(position);
+        final String title = mCalendarInfo.getEventTitle(position);
+        final String details = mCalendarInfo.getEventDetails(position);
+        final long eventId = mCalendarInfo.getEventId(position);
 
         // Add the event text fields
-        if (highlightNext && isUpcoming(event)) {
-            color = Preferences.calendarUpcomingEventsFontColor(mContext);
-            detailsColor = Preferences.calendarUpcomingEventsDetailsFontColor(mContext);
-            itemViews.setTextViewText(R.id.calendar_event_title, getSpannableString(event.title, nextBold));
-            itemViews.setTextViewText(R.id.calendar_event_details, getSpannableString(event.description, nextBold));
+        if (upcoming) {
+            color = settings.calendarUpcomingEventsFontColor;
+            detailsColor = settings.calendarUpcomingEventsDetailsFontColor;
+            itemViews.setTextViewText(R.id.calendar_event_title, getSpannableString(title, nextBold));
+            itemViews.setTextViewText(R.id.calendar_event_details, getSpannableString(details, nextBold));
         } else {
-            color = Preferences.calendarFontColor(mContext);
-            detailsColor = Preferences.calendarDetailsFontColor(mContext);
-            itemViews.setTextViewText(R.id.calendar_event_title, event.title);
-            itemViews.setTextViewText(R.id.calendar_event_details, event.description);
+            color = settings.calendarFontColor;
+            detailsColor = settings.calendarDetailsFontColor;
+            itemViews.setTextViewText(R.id.calendar_event_title, title);
+            itemViews.setTextViewText(R.id.calendar_event_details, details);
         }
         itemViews.setTextColor(R.id.calendar_event_title, color);
         itemViews.setTextColor(R.id.calendar_event_details, detailsColor);
-        if (D) Log.v(TAG, "Showing at position " + position + " event: " + event.title);
 
         final Intent fillInIntent = new Intent();
-        fillInIntent.setData(ContentUris.withAppendedId(Events.CONTENT_URI, event.id));
+        fillInIntent.setData(ContentUris.withAppendedId(Events.CONTENT_URI, eventId));
         // work around stock calendar not displaying the correct date with only uri
-        fillInIntent.putExtra("beginTime", event.start);
-        fillInIntent.putExtra("endTime", event.end);
+        fillInIntent.putExtra("beginTime", mCalendarInfo.getEventStart(position));
+        fillInIntent.putExtra("endTime", mCalendarInfo.getEventEnd(position));
         fillInIntent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK
                 | Intent.FLAG_ACTIVITY_SINGLE_TOP
                 | Intent.FLAG_ACTIVITY_CLEAR_TOP
@@ -164,6 +183,24 @@ class CalendarRemoteViewsFactory implements RemoteViewsFactory {
         return itemViews;
     }
 
+    @Override
+    public RemoteViews getViewAt(int position) {
+        if (position < 0 || position >= mItemViews.length) {
+            return null;
+        }
+
+        // The settings or the upcoming events changed without a data set change
+        if (mItemViewsSettings != WidgetSettings.get(mContext)
+                || System.currentTimeMillis() >= mItemViewsValidUntil) {
+            if (D) Log.v(TAG, "Rebuilding the event views");
+            buildItemViews();
+        }
+
+        if (D) Log.v(TAG, "Showing at position " + position + " event: "
+                + mCalendarInfo.getEventTitle(position));
+        return mItemViews[position];
+    }
+
     @Override
     public int getViewTypeCount() {
         // There's only one view type for the events
@@ -177,27 +214,21 @@ class CalendarRemoteViewsFactory implements RemoteViewsFactory {
 
     @Override
     public void onCreate() {
-        updateCalendarInfo(mContext);
+        mRepository.attach();
+        updateCalendarInfo();
         updatePanelVisibility();
     }
 
     @Override
     public void onDataSetChanged() {
         if (D) Log.v(TAG, "onDataSetChanged()");
-        updateCalendarInfo(mContext);
+        updateCalendarInfo();
         updatePanelVisibility();
     }
 
-    private void updateCalendarInfo(Context context) {
-        // Load the settings
-        Set<String> calendarList = Preferences.calendarsToDisplay(context);
-        boolean remindersOnly = Preferences.showEventsWithRemindersOnly(context);
-        boolean hideAllDay = !Preferences.showAllDayEvents(context);
-        long lookAhead = Preferences.lookAheadTimeInMs(context);
-
-        if (D) Log.d(TAG, "Checking for calendar events...");
-        getCalendarEvents(context, lookAhead, calendarList, remindersOnly, hideAllDay);
-        scheduleCalendarUpdate(context);
+    private void updateCalendarInfo() {
+        mCalendarInfo = mRepository.load();
+        buildItemViews();
     }
 
     /**
@@ -212,282 +243,10 @@ class CalendarRemoteViewsFactory implements RemoteViewsFactory {
         }
     }
 
-    /**
-     * Get the next set of calendar events (up to MAX_CALENDAR_ITEMS) within a
-     * certain look-ahead time. Result is stored in the CalendarInfo object
-     */
-    private void getCalendarEvents(Context context, long lookahead, Set<String> calendars,
-            boolean remindersOnly, boolean hideAllDay) {
-        long now = System.currentTimeMillis();
-        long later = now + lookahead;
-        CalendarInfo newCalendarInfo = new CalendarInfo();
-
-        // Build the 'where' clause
-        StringBuilder where = new StringBuilder();
-        if (remindersOnly) {
-            where.append(CalendarContract.Events.HAS_ALARM + "=1");
-        }
-        if (hideAllDay) {
-            if (remindersOnly) {
-                where.append(" AND ");
-            }
-            where.append(CalendarContract.Events.ALL_DAY + "!=1");
-        }
-        if (calendars != null && calendars.size() > 0) {
-            if (remindersOnly || hideAllDay) {
-                where.append(" AND ");
-            }
-            where.append(CalendarContract.Events.CALENDAR_ID + " in (");
-            int i = 0;
-            for (String s : calendars) {
-                where.append(s);
-                if (i != calendars.size() - 1) {
-                    where.append(",");
-                }
-                i++;
-            }
-            where.append(") ");
-        }
-
-        // Projection array
-        String[] projection = new String[] {
-                CalendarContract.Instances.EVENT_ID,
-                CalendarContract.Events.TITLE,
-                CalendarContract.Instances.BEGIN,
-                CalendarContract.Instances.END,
-                CalendarContract.Events.DESCRIPTION,
-                CalendarContract.Events.EVENT_LOCATION,
-                CalendarContract.Events.ALL_DAY,
-        };
-
-        // all day events are stored in UTC, that is why we need to fetch events after 'later'
-        Uri uri = Uri.withAppendedPath(CalendarContract.Instances.CONTENT_URI,
-                String.format("%d/%d", now - DAY_IN_MILLIS, later + DAY_IN_MILLIS));
-        Cursor cursor = context.getContentResolver().query(uri, projection,
-                where.toString(), null, CalendarContract.Instances.BEGIN + " ASC");
-
-        if (cursor != null) {
-            // The indices for the projection array
-            final int indexEventId = cursor.getColumnIndex(CalendarContract.Instances.EVENT_ID);
-            final int indexTitle = cursor.getColumnIndex(CalendarContract.Events.TITLE);
-            final int indexBeginTime = cursor.getColumnIndex(CalendarContract.Instances.BEGIN);
-            final int indexEndTime = cursor.getColumnIndex(CalendarContract.Instances.END);
-            final int indexDescription = cursor.getColumnIndex(CalendarContract.Events.DESCRIPTION);
-            final int indexLocation = cursor.getColumnIndex(CalendarContract.Events.EVENT_LOCATION);
-            final int indexAllDay = cursor.getColumnIndex(CalendarContract.Events.ALL_DAY);
-
-            final int showLocation = Preferences.calendarLocationMode(context);
-            final int showDescription = Preferences.calendarDescriptionMode(context);
-            final Time time = new Time();
-            int eventCount = 0;
-
-            // Iterate through returned rows to a maximum number of calendar events
-            while (cursor.moveToNext() && eventCount < Constants.MAX_CALENDAR_ITEMS) {
-                final long eventId = cursor.getLong(indexEventId);
-                final String title = cursor.getString(indexTitle);
-                long begin = cursor.getLong(indexBeginTime);
-                long end = cursor.getLong(indexEndTime);
-                final String description = cursor.getString(indexDescription);
-                final String location = cursor.getString(indexLocation);
-                final boolean allDay = cursor.getInt(indexAllDay) != 0;
-                final boolean multiDay = allDay && (end - begin) > DAY_IN_MILLIS;
-                int format = 0;
-
-                if (allDay) {
-                    begin = convertUtcToLocal(time, begin);
-                    end = convertUtcToLocal(time, end);
-                }
-
-                if (end < now || begin > later) {
-                    continue;
-                }
-
-                if (D) Log.v(TAG, "Adding event: " + title + " with id: " + eventId);
-
-                // Start building the event details string
-                // Starting with the date
-                StringBuilder sb = new StringBuilder();
-
-                if (allDay) {
-                    format = Constants.CALENDAR_FORMAT_ALLDAY;
-                } else if (DateUtils.isToday(begin)) {
-                    format = Constants.CALENDAR_FORMAT_TODAY;
-                } else {
-                    format = Constants.CALENDAR_FORMAT_FUTURE;
-                }
-                if ((allDay && !multiDay) || begin == end) {
-                    sb.append(DateUtils.formatDateTime(context, begin, format));
-                } else {
-                    sb.append(DateUtils.formatDateRange(context, begin, end, format));
-                }
-
-                // Add the event location if it should be shown
-                if (showLocation != Preferences.SHOW_NEVER && !TextUtils.isEmpty(location)) {
-                    switch (showLocation) {
-                        case Preferences.SHOW_FIRST_LINE:
-                            int stringEnd = location.indexOf('\n');
-                            if (stringEnd == -1) {
-                                sb.append(": " + location);
-                            } else {
-                                sb.append(": " + location.substring(0, stringEnd));
-                            }
-                            break;
-                        case Preferences.SHOW_ALWAYS:
-                            sb.append(": " + location);
-                            break;
-                    }
-                }
-
-                // Add the event description if it should be shown
-                if (showDescription != Preferences.SHOW_NEVER
-                        && !TextUtils.isEmpty(description)) {
-                    // Show the appropriate separator
-                    if (showLocation == Preferences.SHOW_NEVER) {
-                        sb.append(": ");
-                    } else {
-                        sb.append(" - ");
-                    }
-
-                    switch (showDescription) {
-                        case Preferences.SHOW_FIRST_LINE:
-                            int stringEnd = description.indexOf('\n');
-                            if (stringEnd == -1) {
-                                sb.append(description);
-                            } else {
-                                sb.append(description.substring(0, stringEnd));
-                            }
-                            break;
-                        case Preferences.SHOW_ALWAYS:
-                            sb.append(description);
-                            break;
-                    }
-                }
-
-                // Add the event details to the CalendarInfo object and move to next record
-                newCalendarInfo.addEvent(new EventInfo(eventId, title, sb.toString(), begin,
-                        end, allDay));
-                eventCount++;
-            }
-            cursor.close();
-            mCalendarInfo = newCalendarInfo;
-        }
-
-        // check for first event outside of lookahead window
-        long endOfLookahead = now + lookahead;
-        long minUpdateTime = getMinUpdateFromNow(endOfLookahead);
-
-        // don't bother with querying if the end result is later than the minimum update time anyway
-        if (endOfLookahead < minUpdateTime) {
-            if (where.length() > 0) {
-                where.append(" AND ");
-            }
-            where.append(CalendarContract.Instances.BEGIN);
-            where.append(" > ");
-            where.append(endOfLookahead);
-
-            uri = Uri.withAppendedPath(CalendarContract.Instances.CONTENT_URI,
-                    String.format("%d/%d", endOfLookahead, minUpdateTime));
-            projection = new String[] {
-                    CalendarContract.Instances.BEGIN
-            };
-            cursor = context.getContentResolver().query(uri, projection, where.toString(), null,
-                    CalendarContract.Instances.BEGIN + " ASC limit 1");
-
-            if (cursor != null) {
-                if (cursor.moveToFirst()) {
-                    mCalendarInfo.setFollowingEventStart(cursor.getLong(0));
-                }
-                cursor.close();
-            }
-        }
-    }
-
-    private static long convertUtcToLocal(Time time, long utcTime) {
-        time.timezone = Time.TIMEZONE_UTC;
-        time.set(utcTime);
-        time.timezone = Time.getCurrentTimezone();
-        return time.normalize(true);
-    }
-
-    private static long getMinUpdateFromNow(long now) {
-        // we update at least once a day
-        return now + DAY_IN_MILLIS;
-    }
-
-    // ===============================================================================================
-    // Update timer related functionality
-    // ===============================================================================================
-    /**
-     * Calculates and returns the next time we should push widget updates.
-     */
-    private long calculateUpdateTime(Context context) {
-        final long now = System.currentTimeMillis();
-        final boolean highlightNext = Preferences.calendarHighlightUpcomingEvents(mContext);
-        long lookAhead = Preferences.lookAheadTimeInMs(context);
-        long minUpdateTime = getMinUpdateFromNow(now);
-
-        // Check if there is a calendar event earlier
-        for (EventInfo event : mCalendarInfo.getEvents()) {
-            final long end = event.end;
-            final long start = event.start;
-            if (now < start) {
-                minUpdateTime = Math.min(minUpdateTime, start);
-            }
-            if (now < end) {
-                minUpdateTime = Math.min(minUpdateTime, end);
-            }
-        }
-
-        if (mCalendarInfo.getFollowingEventStart() > 0) {
-            // Make sure to update when the next event gets into the lookahead window
-            minUpdateTime = Math.min(minUpdateTime, mCalendarInfo.getFollowingEventStart()
-                    - lookAhead);
-        }
-
-        if (highlightNext) {
-            // Update at midnight and at 8pm if highlighting of upcoming events is enabled
-            final long startOfDay = getStartOfDay();
-            if (now < startOfDay + UPCOMING_EVENT_HOURS_IN_MILLIS
-                    && startOfDay + UPCOMING_EVENT_HOURS_IN_MILLIS < minUpdateTime) {
-                minUpdateTime = startOfDay + UPCOMING_EVENT_HOURS_IN_MILLIS;
-            } else if (startOfDay + DAY_IN_MILLIS < minUpdateTime) {
-                minUpdateTime = startOfDay + DAY_IN_MILLIS;
-            }
-        }
-
-        // Construct a log entry in human readable form
-        if (D) {
-            Date date1 = new Date(now);
-            Date date2 = new Date(minUpdateTime);
-            Log.i(TAG, "cLock: It is now " + DateFormat.getTimeFormat(context).format(date1)
-                    + ", next widget update on " + DateFormat.getDateFormat(context).format(date2)
-                    + " at " + DateFormat.getTimeFormat(context).format(date2));
-        }
-
-        // Return the next update time
-        return minUpdateTime;
-    }
-
-    /**
-     * Schedule an alarm to trigger an update at the next weather refresh or at
-     * the next event time boundary (start/end).
-     */
-    private void scheduleCalendarUpdate(Context context) {
-        PendingIntent pi = ClockWidgetService.getRefreshIntent(context);
-        long updateTime = calculateUpdateTime(context);
-
-        // Clear any old alarms and schedule the new alarm
-        // Since the updates are now only done very infrequently, it can wake the device to ensure
-        // the latest date is available when the user turns the screen on after a few hours sleep
-        AlarmManager am = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
-        am.cancel(pi);
-        if (updateTime > 0) {
-            am.set(AlarmManager.RTC_WAKEUP, updateTime, pi);
-        }
-    }
-
     @Override
     public void onDestroy() {
-        mCalendarInfo.clearEvents();
+        mRepository.detach();
+        mCalendarInfo = new CalendarInfo();
+        mItemViews = new RemoteViews[0];
     }
 }
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock.calendar;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.CalendarContract;
+import android.text.format.Time;
+import android.util.Log;
+
+import com.cyanogenmod.lockclock.misc.Constants;
+import com.cyanogenmod.lockclock.misc.WidgetSettings;
+
+import java.util.Set;
+import java.util.TimeZone;
+
+/**
+ * The event instances of several days past the lookahead window, sorted by their start. The
+ * events to show and the first one following them are sliced out of it in memory, so the
+ * refreshes at event boundaries need no query until the window runs out, the calendar
+ * changes or the events to show are filtered differently.
+ */
+final class CalendarWindow {
+    private static final String TAG = "CalendarWindow";
+    private static final boolean D = Constants.DEBUG;
+
+    private static final long DAY_IN_MILLIS = CalendarRepository.DAY_IN_MILLIS;
+    // How far the window reaches past the lookahead window it was loaded for
+    private static final long SPAN_MS = 7 * DAY_IN_MILLIS;
+
+    private static final String[] PROJECTION = new String[] {
+            CalendarContract.Instances.EVENT_ID,
+            CalendarContract.Events.TITLE,
+            CalendarContract.Instances.BEGIN,
+            CalendarContract.Instances.END,
+            CalendarContract.Events.DESCRIPTION,
+            CalendarContract.Events.EVENT_LOCATION,
+            CalendarContract.Events.ALL_DAY,
+    };
+
+    // The filter the window was loaded with
+    private final Set<String> mCalendars;
+    private final boolean mRemindersOnly;
+    private final boolean mHideAllDay;
+    private final String mTimeZone;
+
+    // The range of the query, instances overlapping it are included
+    private final long mQueryStart;
+    private final long mQueryEnd;
+
+    private final EventStore mInstances;
+
+    private CalendarWindow(WidgetSettings settings, String timeZone, long queryStart,
+            long queryEnd, EventStore instances) {
+        mCalendars = settings.calendarsToDisplay;
+        mRemindersOnly = settings.showEventsWithRemindersOnly;
+        mHideAllDay = !settings.showAllDayEvents;
+        mTimeZone = timeZone;
+        mQueryStart = queryStart;
+        mQueryEnd = queryEnd;
+        mInstances = instances;
+    }
+
+    /**
+     * Query the instances from a day before now to several days past the lookahead window
+     *
+     * @return The window, null if the calendar provider could not be queried
+     */
+    static CalendarWindow load(Context context, WidgetSettings settings, long now) {
+        final Set<String> calendars = settings.calendarsToDisplay;
+        final boolean remindersOnly = settings.showEventsWithRemindersOnly;
+        final boolean hideAllDay = !settings.showAllDayEvents;
+
+        // Build the 'where' clause
+        StringBuilder where = new StringBuilder();
+        if (remindersOnly) {
+            where.append(CalendarContract.Events.HAS_ALARM + "=1");
+        }
+        if (hideAllDay) {
+            if (remindersOnly) {
+                where.append(" AND ");
+            }
+            where.append(CalendarContract.Events.ALL_DAY + "!=1");
+        }
+        if (calendars != null && calendars.size() > 0) {
+            if (remindersOnly || hideAllDay) {
+                where.append(" AND ");
+            }
+            where.append(CalendarContract.Events.CALENDAR_ID + " in (");
+            int i = 0;
+            for (String s : calendars) {
+                where.append(s);
+                if (i != calendars.size() - 1) {
+                    where.append(",");
+                }
+                i++;
+            }
+            where.append(") ");
+        }
+
+        // all day events are stored in UTC, that is why the range starts a day early
+        final long queryStart = now - DAY_IN_MILLIS;
+        final long queryEnd = now + settings.lookAheadTimeInMs() + SPAN_MS;
+        Uri uri = Uri.withAppendedPath(CalendarContract.Instances.CONTENT_URI,
+                String.format("%d/%d", queryStart, queryEnd));
+        Cursor cursor;
+        try {
+            cursor = context.getContentResolver().query(uri, PROJECTION,
+                    where.toString(), null, CalendarContract.Instances.BEGIN + " ASC");
+        } catch (SecurityException e) {
+            // The calendar permission was revoked
+            Log.w(TAG, "Could not query the calendar provider", e);
+            return null;
+        }
+        if (cursor == null) {
+            return null;
+        }
+
+        // The indices for the projection array
+        final int indexEventId = cursor.getColumnIndex(CalendarContract.Instances.EVENT_ID);
+        final int indexTitle = cursor.getColumnIndex(CalendarContract.Events.TITLE);
+        final int indexBeginTime = cursor.getColumnIndex(CalendarContract.Instances.BEGIN);
+        final int indexEndTime = cursor.getColumnIndex(CalendarContract.Instances.END);
+        final int indexDescription = cursor.getColumnIndex(CalendarContract.Events.DESCRIPTION);
+        final int indexLocation = cursor.getColumnIndex(CalendarContract.Events.EVENT_LOCATION);
+        final int indexAllDay = cursor.getColumnIndex(CalendarContract.Events.ALL_DAY);
+
+        final Time time = new Time();
+        final EventStore.Builder instances = new EventStore.Builder(cursor.getCount());
+        try {
+            while (cursor.moveToNext()) {
+                long begin = cursor.getLong(indexBeginTime);
+                long end = cursor.getLong(indexEndTime);
+                final boolean allDay = cursor.getInt(indexAllDay) != 0;
+                final boolean multiDay = allDay && (end - begin) > DAY_IN_MILLIS;
+
+                if (allDay) {
+                    begin = convertUtcToLocal(time, begin);
+                    end = convertUtcToLocal(time, end);
+                }
+
+                int flags = 0;
+                if (allDay) {
+                    flags |= EventStore.FLAG_ALL_DAY;
+                }
+                if (multiDay) {
+                    flags |= EventStore.FLAG_MULTI_DAY;
+                }
+                instances.add(cursor.getLong(indexEventId), cursor.getString(indexTitle),
+                        cursor.getString(indexDescription), cursor.getString(indexLocation),
+                        null, begin, end, flags);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        if (D) Log.d(TAG, "Loaded " + instances.size() + " instances");
+        // The all day events moved with the conversion to local time, the builder merges
+        // them back into place
+        return new CalendarWindow(settings, TimeZone.getDefault().getID(), queryStart,
+                queryEnd, instances.build());
+    }
+
+    /**
+     * @return Whether the window covers the lookahead window of now and the day after it, and
+     * was loaded with the current filter and time zone
+     */
+    boolean isValidFor(WidgetSettings settings, long now) {
+        if (mRemindersOnly != settings.showEventsWithRemindersOnly
+                || mHideAllDay != !settings.showAllDayEvents
+                || !(mCalendars == null ? settings.calendarsToDisplay == null
+                        : mCalendars.equals(settings.calendarsToDisplay))
+                || !mTimeZone.equals(TimeZone.getDefault().getID())) {
+            return false;
+        }
+        // The all day events of the last day may still be shifted into it
+        return now - DAY_IN_MILLIS >= mQueryStart
+                && now + settings.lookAheadTimeInMs() + 2 * DAY_IN_MILLIS <= mQueryEnd;
+    }
+
+    /**
+     * Get the next set of calendar events (up to MAX_CALENDAR_ITEMS) within the look-ahead
+     * time, and the start of the first event within a day past it. The details lines of the
+     * events shown last are reused from the cache.
+     */
+    CalendarInfo slice(Context context, WidgetSettings settings, long now,
+            EventDetailsCache detailsCache) {
+        final long later = now + settings.lookAheadTimeInMs();
+        final int showLocation = settings.calendarLocationMode;
+        final int showDescription = settings.calendarDescriptionMode;
+        final CalendarInfo.Builder calendarInfo = new CalendarInfo.Builder();
+        detailsCache.beginPass(context, CalendarRepository.getStartOfDay());
+
+        // No event starting before this one can still be running
+        final int size = mInstances.size();
+        int eventCount = 0;
+        for (int i = mInstances.firstStartingAtOrAfter(now - mInstances.getMaxDuration());
+                i < size && eventCount < Constants.MAX_CALENDAR_ITEMS; i++) {
+            final long begin = mInstances.getStart(i);
+            final long end = mInstances.getEnd(i);
+            if (begin > later) {
+                break;
+            }
+            if (end < now) {
+                continue;
+            }
+
+            final long eventId = mInstances.getId(i);
+            final String title = mInstances.getTitle(i);
+            if (D) Log.v(TAG, "Adding event: " + title + " with id: " + eventId);
+
+            final boolean allDay = mInstances.isAllDay(i);
+            final String details = detailsCache.get(context, eventId, begin, end, allDay,
+                    mInstances.isMultiDay(i), mInstances.getLocation(i),
+                    mInstances.getDescription(i), showLocation, showDescription);
+            calendarInfo.addEvent(eventId, title, details, begin, end, allDay);
+            eventCount++;
+        }
+        detailsCache.endPass();
+
+        // check for first event outside of lookahead window, we update at least once a day
+        final int following = mInstances.firstStartingAtOrAfter(later + 1);
+        if (following < size && mInstances.getStart(following) <= later + DAY_IN_MILLIS) {
+            calendarInfo.setFollowingEventStart(mInstances.getStart(following));
+        }
+        return calendarInfo.build();
+    }
+
+    private static long convertUtcToLocal(Time time, long utcTime) {
+        time.timezone = Time.TIMEZONE_UTC;
+        time.set(utcTime);
+        time.timezone = Time.getCurrentTimezone();
+        return time.normalize(true);
+    }
+}
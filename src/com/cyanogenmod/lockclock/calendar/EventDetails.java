@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock.calendar;
+
+import android.content.Context;
+import android.text.TextUtils;
+import android.text.format.DateUtils;
+
+import com.cyanogenmod.lockclock.misc.Constants;
+import com.cyanogenmod.lockclock.misc.Preferences;
+
+/**
+ * Builds the details line shown below the title of a calendar event
+ */
+public final class EventDetails {
+
+    private EventDetails() {
+    }
+
+    /**
+     * @return The event date or date range, followed by the location and description as
+     * selected by the show modes
+     */
+    public static String build(Context context, long begin, long end, boolean allDay,
+            boolean multiDay, String location, String description, int showLocation,
+            int showDescription) {
+        // Start building the event details string
+        // Starting with the date
+        StringBuilder sb = new StringBuilder();
+        int format;
+
+        if (allDay) {
+            format = Constants.CALENDAR_FORMAT_ALLDAY;
+        } else if (DateUtils.isToday(begin)) {
+            format = Constants.CALENDAR_FORMAT_TODAY;
+        } else {
+            format = Constants.CALENDAR_FORMAT_FUTURE;
+        }
+        if ((allDay && !multiDay) || begin == end) {
+            sb.append(DateUtils.formatDateTime(context, begin, format));
+        } else {
+            sb.append(DateUtils.formatDateRange(context, begin, end, format));
+        }
+
+        // Add the event location if it should be shown
+        if (showLocation != Preferences.SHOW_NEVER && !TextUtils.isEmpty(location)) {
+            switch (showLocation) {
+                case Preferences.SHOW_FIRST_LINE:
+                    int stringEnd = location.indexOf('\n');
+                    if (stringEnd == -1) {
+                        sb.append(": " + location);
+                    } else {
+                        sb.append(": " + location.substring(0, stringEnd));
+                    }
+                    break;
+                case Preferences.SHOW_ALWAYS:
+                    sb.append(": " + location);
+                    break;
+            }
+        }
+
+        // Add the event description if it should be shown
+        if (showDescription != Preferences.SHOW_NEVER && !TextUtils.isEmpty(description)) {
+            // Show the appropriate separator
+            if (showLocation == Preferences.SHOW_NEVER) {
+                sb.append(": ");
+            } else {
+                sb.append(" - ");
+            }
+
+            switch (showDescription) {
+                case Preferences.SHOW_FIRST_LINE:
+                    int stringEnd = description.indexOf('\n');
+                    if (stringEnd == -1) {
+                        sb.append(description);
+                    } else {
+                        sb.append(description.substring(0, stringEnd));
+                    }
+                    break;
+                case Preferences.SHOW_ALWAYS:
+                    sb.append(description);
+                    break;
+            }
+        }
+
+        return sb.toString();
+    }
+}
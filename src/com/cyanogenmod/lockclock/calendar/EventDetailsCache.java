@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock.calendar;
+
+import android.content.Context;
+import android.text.TextUtils;
+import android.text.format.DateFormat;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * The details lines of the events shown last, so a refresh only formats the events that are
+ * new or changed. The lines are formatted for a locale, time format, time zone and day, since
+ * events of today show their time only, and are dropped when any of these changes. Only the
+ * events of the latest pass are kept.
+ */
+final class EventDetailsCache {
+
+    // What the cached lines were formatted for
+    private Locale mLocale;
+    private boolean mIs24Hour;
+    private String mTimeZone;
+    private long mStartOfDay;
+
+    private HashMap<Key, Entry> mEntries = new HashMap<>();
+    private HashMap<Key, Entry> mPassEntries = new HashMap<>();
+
+    /**
+     * Start a pass over the events to show, dropping everything if the lines would be
+     * formatted differently now
+     */
+    void beginPass(Context context, long startOfDay) {
+        final Locale locale = Locale.getDefault();
+        final boolean is24Hour = DateFormat.is24HourFormat(context);
+        final String timeZone = TimeZone.getDefault().getID();
+        if (mStartOfDay != startOfDay || mIs24Hour != is24Hour
+                || !locale.equals(mLocale) || !timeZone.equals(mTimeZone)) {
+            invalidate();
+            mLocale = locale;
+            mIs24Hour = is24Hour;
+            mTimeZone = timeZone;
+            mStartOfDay = startOfDay;
+        }
+        mPassEntries.clear();
+    }
+
+    /**
+     * Keep the lines of this pass only, the events that were not shown are gone
+     */
+    void endPass() {
+        final HashMap<Key, Entry> entries = mEntries;
+        mEntries = mPassEntries;
+        mPassEntries = entries;
+        mPassEntries.clear();
+    }
+
+    void invalidate() {
+        mEntries.clear();
+        mLocale = null;
+    }
+
+    /**
+     * @return The details line of the event, see {@link EventDetails#build}
+     */
+    String get(Context context, long eventId, long begin, long end, boolean allDay,
+            boolean multiDay, String location, String description, int showLocation,
+            int showDescription) {
+        final Key key = new Key(eventId, begin, end, allDay, multiDay, showLocation,
+                showDescription);
+        Entry entry = mEntries.get(key);
+        // The event may have been edited without moving it
+        if (entry == null || !TextUtils.equals(entry.location, location)
+                || !TextUtils.equals(entry.description, description)) {
+            entry = new Entry(location, description, EventDetails.build(context, begin, end,
+                    allDay, multiDay, location, description, showLocation, showDescription));
+        }
+        mPassEntries.put(key, entry);
+        return entry.details;
+    }
+
+    private static final class Key {
+        private final long eventId;
+        private final long begin;
+        private final long end;
+        private final int flags;
+
+        Key(long eventId, long begin, long end, boolean allDay, boolean multiDay,
+                int showLocation, int showDescription) {
+            this.eventId = eventId;
+            this.begin = begin;
+            this.end = end;
+            // The format of the date is decided by these and the day of the begin
+            this.flags = (allDay ? 1 : 0) | (multiDay ? 2 : 0)
+                    | (showLocation << 2) | (showDescription << 10);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) o;
+            return eventId == other.eventId && begin == other.begin && end == other.end
+                    && flags == other.flags;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = (int) (eventId ^ (eventId >>> 32));
+            result = 31 * result + (int) (begin ^ (begin >>> 32));
+            result = 31 * result + (int) (end ^ (end >>> 32));
+            return 31 * result + flags;
+        }
+    }
+
+    private static final class Entry {
+        private final String location;
+        private final String description;
+        private final String details;
+
+        Entry(String location, String description, String details) {
+            this.location = location;
+            this.description = description;
+            this.details = details;
+        }
+    }
+}
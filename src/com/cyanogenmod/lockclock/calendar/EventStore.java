@@ -0,0 +1,345 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock.calendar;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Objects;
+
+/**
+ * Calendar event instances held in parallel arrays, ordered by start with all day events
+ * first among those starting at the same time. The strings repeated by the instances of
+ * recurring events are shared. Looking up events by time is a binary search. The details
+ * column holds the formatted line shown below the title, for events that are displayed.
+ */
+final class EventStore {
+    static final int FLAG_ALL_DAY = 1;
+    static final int FLAG_MULTI_DAY = 1 << 1;
+
+    static final EventStore EMPTY = new Builder(0).build();
+
+    private final int mSize;
+    private final long[] mIds;
+    private final long[] mStarts;
+    private final long[] mEnds;
+    private final int[] mFlags;
+    private final String[] mTitles;
+    private final String[] mDescriptions;
+    private final String[] mLocations;
+    private final String[] mDetails;
+    // The ends in ascending order, for finding the next one without a scan
+    private final long[] mSortedEnds;
+    private final long mMaxDuration;
+
+    private EventStore(int size, long[] ids, long[] starts, long[] ends, int[] flags,
+            String[] titles, String[] descriptions, String[] locations, String[] details) {
+        mSize = size;
+        mIds = ids;
+        mStarts = starts;
+        mEnds = ends;
+        mFlags = flags;
+        mTitles = titles;
+        mDescriptions = descriptions;
+        mLocations = locations;
+        mDetails = details;
+
+        mSortedEnds = Arrays.copyOf(ends, size);
+        Arrays.sort(mSortedEnds);
+        long maxDuration = 0;
+        for (int i = 0; i < size; i++) {
+            maxDuration = Math.max(maxDuration, ends[i] - starts[i]);
+        }
+        mMaxDuration = maxDuration;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    long getId(int index) {
+        return mIds[index];
+    }
+
+    long getStart(int index) {
+        return mStarts[index];
+    }
+
+    long getEnd(int index) {
+        return mEnds[index];
+    }
+
+    int getFlags(int index) {
+        return mFlags[index];
+    }
+
+    boolean isAllDay(int index) {
+        return (mFlags[index] & FLAG_ALL_DAY) != 0;
+    }
+
+    boolean isMultiDay(int index) {
+        return (mFlags[index] & FLAG_MULTI_DAY) != 0;
+    }
+
+    String getTitle(int index) {
+        return mTitles[index];
+    }
+
+    String getDescription(int index) {
+        return mDescriptions[index];
+    }
+
+    String getLocation(int index) {
+        return mLocations[index];
+    }
+
+    String getDetails(int index) {
+        return mDetails[index];
+    }
+
+    /**
+     * @return The longest duration of an event, no event starting earlier than this before
+     * a time can still be running at it
+     */
+    long getMaxDuration() {
+        return mMaxDuration;
+    }
+
+    /**
+     * @return The index of the first event starting at or after the time, the number of
+     * events if there is none
+     */
+    int firstStartingAtOrAfter(long time) {
+        return lowerBound(mStarts, mSize, time);
+    }
+
+    /**
+     * @return The first start or end of an event after the time, Long.MAX_VALUE if there is
+     * none
+     */
+    long getNextBoundaryAfter(long time) {
+        long next = Long.MAX_VALUE;
+        int start = lowerBound(mStarts, mSize, time + 1);
+        if (start < mSize) {
+            next = mStarts[start];
+        }
+        int end = lowerBound(mSortedEnds, mSize, time + 1);
+        if (end < mSize) {
+            next = Math.min(next, mSortedEnds[end]);
+        }
+        return next;
+    }
+
+    boolean contentEquals(EventStore other) {
+        if (mSize != other.mSize) {
+            return false;
+        }
+        for (int i = 0; i < mSize; i++) {
+            if (mIds[i] != other.mIds[i] || mStarts[i] != other.mStarts[i]
+                    || mEnds[i] != other.mEnds[i] || mFlags[i] != other.mFlags[i]
+                    || !Objects.equals(mTitles[i], other.mTitles[i])
+                    || !Objects.equals(mDescriptions[i], other.mDescriptions[i])
+                    || !Objects.equals(mLocations[i], other.mLocations[i])
+                    || !Objects.equals(mDetails[i], other.mDetails[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int lowerBound(long[] values, int size, long value) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (values[mid] < value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    //===============================================================================================
+    // Bulk loading
+    //===============================================================================================
+    /**
+     * Collects the events in any order and sorts them once when built. Input that is
+     * already in order, like a cursor sorted by start, is only checked; input with a few
+     * events out of place, like all day events shifted to local time, is merged into place.
+     */
+    static final class Builder {
+        // Above this share of events out of place a full sort beats moving them one by one
+        private static final int MAX_OUT_OF_PLACE_DIVISOR = 8;
+
+        private final HashMap<String, String> mStrings = new HashMap<>();
+        private int mSize;
+        private long[] mIds;
+        private long[] mStarts;
+        private long[] mEnds;
+        private int[] mFlags;
+        private String[] mTitles;
+        private String[] mDescriptions;
+        private String[] mLocations;
+        private String[] mDetails;
+        private int mOutOfPlace;
+
+        Builder(int capacity) {
+            capacity = Math.max(capacity, 1);
+            mIds = new long[capacity];
+            mStarts = new long[capacity];
+            mEnds = new long[capacity];
+            mFlags = new int[capacity];
+            mTitles = new String[capacity];
+            mDescriptions = new String[capacity];
+            mLocations = new String[capacity];
+            mDetails = new String[capacity];
+        }
+
+        Builder add(long id, String title, String description, String location,
+                String details, long start, long end, int flags) {
+            if (mSize == mIds.length) {
+                grow();
+            }
+            final int i = mSize++;
+            mIds[i] = id;
+            mStarts[i] = start;
+            mEnds[i] = end;
+            mFlags[i] = flags;
+            mTitles[i] = intern(title);
+            mDescriptions[i] = intern(description);
+            mLocations[i] = intern(location);
+            mDetails[i] = intern(details);
+            if (i > 0 && compare(i - 1, i) > 0) {
+                mOutOfPlace++;
+            }
+            return this;
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        EventStore build() {
+            final int size = mSize;
+            final int[] order = new int[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            if (mOutOfPlace > 0) {
+                if (mOutOfPlace <= size / MAX_OUT_OF_PLACE_DIVISOR + 1) {
+                    insertionSort(order);
+                } else {
+                    mergeSort(order, new int[size], 0, size);
+                }
+            }
+
+            final long[] ids = new long[size];
+            final long[] starts = new long[size];
+            final long[] ends = new long[size];
+            final int[] flags = new int[size];
+            final String[] titles = new String[size];
+            final String[] descriptions = new String[size];
+            final String[] locations = new String[size];
+            final String[] details = new String[size];
+            for (int i = 0; i < size; i++) {
+                final int from = order[i];
+                ids[i] = mIds[from];
+                starts[i] = mStarts[from];
+                ends[i] = mEnds[from];
+                flags[i] = mFlags[from];
+                titles[i] = mTitles[from];
+                descriptions[i] = mDescriptions[from];
+                locations[i] = mLocations[from];
+                details[i] = mDetails[from];
+            }
+            return new EventStore(size, ids, starts, ends, flags, titles, descriptions,
+                    locations, details);
+        }
+
+        private String intern(String value) {
+            if (value == null) {
+                return null;
+            }
+            final String shared = mStrings.get(value);
+            if (shared != null) {
+                return shared;
+            }
+            mStrings.put(value, value);
+            return value;
+        }
+
+        private void grow() {
+            final int capacity = mIds.length * 2;
+            mIds = Arrays.copyOf(mIds, capacity);
+            mStarts = Arrays.copyOf(mStarts, capacity);
+            mEnds = Arrays.copyOf(mEnds, capacity);
+            mFlags = Arrays.copyOf(mFlags, capacity);
+            mTitles = Arrays.copyOf(mTitles, capacity);
+            mDescriptions = Arrays.copyOf(mDescriptions, capacity);
+            mLocations = Arrays.copyOf(mLocations, capacity);
+            mDetails = Arrays.copyOf(mDetails, capacity);
+        }
+
+        private int compare(int a, int b) {
+            if (mStarts[a] != mStarts[b]) {
+                return mStarts[a] < mStarts[b] ? -1 : 1;
+            }
+            final boolean allDayA = (mFlags[a] & FLAG_ALL_DAY) != 0;
+            final boolean allDayB = (mFlags[b] & FLAG_ALL_DAY) != 0;
+            if (allDayA != allDayB) {
+                return allDayA ? -1 : 1;
+            }
+            return 0;
+        }
+
+        private void insertionSort(int[] order) {
+            for (int i = 1; i < order.length; i++) {
+                final int current = order[i];
+                int j = i - 1;
+                while (j >= 0 && compare(order[j], current) > 0) {
+                    order[j + 1] = order[j];
+                    j--;
+                }
+                order[j + 1] = current;
+            }
+        }
+
+        private void mergeSort(int[] order, int[] scratch, int from, int to) {
+            if (to - from < 2) {
+                return;
+            }
+            final int mid = (from + to) >>> 1;
+            mergeSort(order, scratch, from, mid);
+            mergeSort(order, scratch, mid, to);
+            if (compare(order[mid - 1], order[mid]) <= 0) {
+                // Both halves are in order already
+                return;
+            }
+            System.arraycopy(order, from, scratch, from, to - from);
+            int left = from;
+            int right = mid;
+            for (int i = from; i < to; i++) {
+                if (right >= to || (left < mid && compare(scratch[left], scratch[right]) <= 0)) {
+                    order[i] = scratch[left++];
+                } else {
+                    order[i] = scratch[right++];
+                }
+            }
+        }
+    }
+}
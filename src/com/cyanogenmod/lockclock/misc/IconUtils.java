@@ -16,8 +16,8 @@
 
 package com.cyanogenmod.lockclock.misc;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
-import android.content.pm.PackageManager;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
@@ -29,23 +29,32 @@ import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.util.DisplayMetrics;
 import android.util.Log;
+import android.util.LruCache;
 import com.cyanogenmod.lockclock.R;
-import com.cyanogenmod.lockclock.weather.Utils;
+import com.cyanogenmod.lockclock.weather.ConditionResources;
 
 public class IconUtils {
     private static final String TAG = "IconUtils";
     private static boolean D = Constants.DEBUG;
 
+    // Decoded and tinted bitmaps are kept around since the same few icons are rendered on
+    // every widget refresh. The cache budget is in bytes
+    private static final int BITMAP_CACHE_SIZE_BYTES = 2 * 1024 * 1024;
+    private static final LruCache<BitmapKey, Bitmap> sBitmapCache =
+            new LruCache<BitmapKey, Bitmap>(BITMAP_CACHE_SIZE_BYTES) {
+        @Override
+        protected int sizeOf(BitmapKey key, Bitmap value) {
+            return value.getByteCount();
+        }
+    };
+
     public static int getWeatherIconResource(Context context, String iconSet, int conditionCode) {
         if (iconSet.startsWith("ext:") || iconSet.equals(Constants.MONOCHROME)) {
             return 0;
         }
 
-        final Resources res = context.getResources();
-        final int resId = res.getIdentifier("weather_" + iconSet + "_"
-                + Utils.addOffsetToConditionCodeFromWeatherContract(conditionCode), "drawable",
-                        context.getPackageName());
-
+        final int resId = ConditionResources.getIconTable(context, iconSet)
+                .getResourceId(conditionCode);
         if (resId != 0) {
             return resId;
         }
@@ -62,29 +71,13 @@ public class IconUtils {
     public static Bitmap getWeatherIconBitmap(Context context, String iconSet,
             int color, int conditionCode, int density) {
         boolean isMonoSet = Constants.MONOCHROME.equals(iconSet);
-        Resources res = null;
-        int resId = 0;
-        int fixedConditionCode = Utils.addOffsetToConditionCodeFromWeatherContract(conditionCode);
-
-        if (iconSet.startsWith("ext:")) {
-            String packageName = iconSet.substring(4);
-            try {
-                res = context.getPackageManager().getResourcesForApplication(packageName);
-                resId = res.getIdentifier("weather_" + fixedConditionCode, "drawable", packageName);
-            } catch (PackageManager.NameNotFoundException e) {
-                // fall back to colored icons
-                iconSet = Constants.COLOR_STD;
-            }
-        }
-        if (resId == 0) {
-            String identifier = isMonoSet
-                    ? "weather_" + fixedConditionCode : "weather_"
-                        + iconSet + "_" + fixedConditionCode;
-            res = context.getResources();
-            resId = res.getIdentifier(identifier, "drawable", context.getPackageName());
-        }
+        final ConditionResources.IconTable table =
+                ConditionResources.getIconTable(context, iconSet);
+        Resources res = table.getResources();
+        int resId = table.getResourceId(conditionCode);
 
         if (resId == 0) {
+            res = context.getResources();
             resId = isMonoSet ? R.drawable.weather_na : R.drawable.weather_color_na;
         }
 
@@ -95,7 +88,33 @@ public class IconUtils {
         return getOverlaidBitmap(res, resId, color, 0);
     }
 
+    /**
+     * Returns the resource bitmap with the color overlaid, or the plain bitmap if color is 0.
+     * The result is shared through the bitmap cache and must not be modified.
+     */
     public static Bitmap getOverlaidBitmap(Resources res, int resId, int color, int density) {
+        String packageName;
+        try {
+            packageName = res.getResourcePackageName(resId);
+        } catch (Resources.NotFoundException e) {
+            // Can't build a key for it, let the decoding deal with the missing resource
+            return createOverlaidBitmap(res, resId, color, density);
+        }
+
+        final BitmapKey key = new BitmapKey(packageName, resId, color, density);
+        Bitmap bitmap = sBitmapCache.get(key);
+        if (bitmap == null) {
+            final long start = RenderStats.start();
+            bitmap = createOverlaidBitmap(res, resId, color, density);
+            RenderStats.end(RenderStats.STAGE_BITMAP, start);
+            if (bitmap != null) {
+                sBitmapCache.put(key, bitmap);
+            }
+        }
+        return bitmap;
+    }
+
+    private static Bitmap createOverlaidBitmap(Resources res, int resId, int color, int density) {
         Bitmap src = getBitmapFromResource(res, resId, density);
         if (color == 0 || src == null) {
             return src;
@@ -135,6 +154,51 @@ public class IconUtils {
         return result;
     }
 
+    /**
+     * Release cached bitmaps according to the memory pressure reported by the system
+     */
+    public static void trimMemory(int level) {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            if (D) Log.d(TAG, "Evicting all cached bitmaps, trim level " + level);
+            sBitmapCache.evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            if (D) Log.d(TAG, "Trimming cached bitmaps, trim level " + level);
+            sBitmapCache.trimToSize(sBitmapCache.maxSize() / 2);
+        }
+    }
+
+    /**
+     * Drop all cached bitmaps, those decoded for the default density were scaled for the
+     * previous configuration
+     */
+    public static void invalidate() {
+        if (D) Log.d(TAG, "Evicting all cached bitmaps, configuration changed");
+        sBitmapCache.evictAll();
+    }
+
+    /**
+     * Drop the cached bitmaps decoded from a package, it was updated or removed
+     */
+    public static void invalidatePackage(String packageName) {
+        for (BitmapKey key : sBitmapCache.snapshot().keySet()) {
+            if (key.mPackageName.equals(packageName)) {
+                sBitmapCache.remove(key);
+            }
+        }
+    }
+
+    public static int getBitmapCacheHitCount() {
+        return sBitmapCache.hitCount();
+    }
+
+    public static int getBitmapCacheMissCount() {
+        return sBitmapCache.missCount();
+    }
+
+    public static int getBitmapCacheSize() {
+        return sBitmapCache.size();
+    }
+
     public static int getNextHigherDensity(Context context) {
         Resources res = context.getResources();
         int density = res.getDisplayMetrics().densityDpi;
@@ -154,4 +218,42 @@ public class IconUtils {
         // fallback: use current density
         return density;
     }
+
+    private static class BitmapKey {
+        private final String mPackageName;
+        private final int mResId;
+        private final int mColor;
+        private final int mDensity;
+
+        BitmapKey(String packageName, int resId, int color, int density) {
+            mPackageName = packageName;
+            mResId = resId;
+            mColor = color;
+            mDensity = density;
+        }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + mPackageName.hashCode();
+            result = prime * result + mResId;
+            result = prime * result + mColor;
+            result = prime * result + mDensity;
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof BitmapKey))
+                return false;
+            BitmapKey other = (BitmapKey) obj;
+            return mResId == other.mResId
+                    && mColor == other.mColor
+                    && mDensity == other.mDensity
+                    && mPackageName.equals(other.mPackageName);
+        }
+    }
 }
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock.misc;
+
+import android.appwidget.AppWidgetManager;
+import android.content.Context;
+import android.os.Bundle;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.cyanogenmod.lockclock.R;
+
+/**
+ * The layout decisions for a widget that only depend on its size, host category and the
+ * clock type. They are computed from a single options lookup and cached per widget id until
+ * the options or the configuration change.
+ */
+public final class LayoutPlan {
+    private static final String TAG = "LayoutPlan";
+    private static final boolean D = Constants.DEBUG;
+
+    private static final SparseArray<LayoutPlan> sPlans = new SparseArray<>();
+
+    public final boolean digitalClock;
+    public final boolean isKeyguard;
+    public final boolean showSmallWidget;
+    public final boolean canFitWeather;
+    public final boolean canFitCalendar;
+    public final boolean canFitTimestamp;
+    public final float scaleRatio;
+    public final float clockFontSize;
+
+    private LayoutPlan(Context context, Bundle options, boolean digitalClock) {
+        this.digitalClock = digitalClock;
+        isKeyguard = WidgetUtils.isKeyguardWidget(options);
+        showSmallWidget = WidgetUtils.showSmallWidget(context, options, digitalClock, isKeyguard);
+        canFitWeather = WidgetUtils.canFitWeather(context, options, digitalClock, isKeyguard);
+        canFitCalendar = WidgetUtils.canFitCalendar(context, options, digitalClock);
+        canFitTimestamp = WidgetUtils.canFitTimestamp(context, options, digitalClock);
+        scaleRatio = WidgetUtils.getScaleRatio(context, options);
+        clockFontSize = context.getResources().getDimension(R.dimen.widget_big_font_size)
+                * scaleRatio;
+    }
+
+    /**
+     * Returns the plan for a widget, computing it if there is none cached for the
+     * requested clock type
+     */
+    public static LayoutPlan get(Context context, AppWidgetManager appWidgetManager,
+            int appWidgetId, boolean digitalClock) {
+        synchronized (sPlans) {
+            LayoutPlan plan = sPlans.get(appWidgetId);
+            if (plan == null || plan.digitalClock != digitalClock) {
+                Bundle options = appWidgetManager.getAppWidgetOptions(appWidgetId);
+                plan = new LayoutPlan(context, options, digitalClock);
+                sPlans.put(appWidgetId, plan);
+                if (D) Log.d(TAG, "Computed layout plan for widget " + appWidgetId
+                        + ": small = " + plan.showSmallWidget + ", keyguard = " + plan.isKeyguard);
+            }
+            return plan;
+        }
+    }
+
+    /**
+     * The options of a widget changed, its plan will be recomputed on the next render
+     */
+    public static void invalidate(int appWidgetId) {
+        synchronized (sPlans) {
+            sPlans.remove(appWidgetId);
+        }
+    }
+
+    /**
+     * The configuration changed, all dimensions need to be looked up again
+     */
+    public static void invalidateAll() {
+        synchronized (sPlans) {
+            sPlans.clear();
+        }
+    }
+}
@@ -294,82 +294,30 @@ public class Preferences {
     }
 
     public static void setCachedWeatherInfo(Context context, long timestamp, WeatherInfo info) {
-        SharedPreferences.Editor editor = getPrefs(context).edit();
-        editor.putLong(Constants.WEATHER_LAST_UPDATE, timestamp);
-        if (info != null) {
+        WeatherSnapshot.publish(context, timestamp, info);
+        if (info != null && isFirstWeatherUpdate(context)) {
             // We now have valid weather data to display
-            JSONObject jsonObject = new JSONObject();
-            boolean serialized = false;
-            try {
-                //These members always return a value that can be parsed
-                jsonObject
-                    .put(WEATHER_INFO_CITY, info.getCity())
-                    .put(WEATHER_INFO_CONDITION_CODE, info.getConditionCode())
-                    .put(WEATHER_INFO_TEMPERATURE, info.getTemperature())
-                    .put(WEATHER_INFO_TEMPERATURE_UNIT, info.getTemperatureUnit())
-                    .put(WEATHER_INFO_TIMESTAMP, info.getTimestamp());
-
-                // Handle special cases. JSONObject.put(key, double) does not allow
-                // Double.NaN, so we store it as a string. JSONObject.getDouble() will parse the
-                // "NaN" string and return Double.NaN, which is what we want
-                double humidity = info.getHumidity();
-                jsonObject.put(WEATHER_INFO_HUMIDITY, Double.isNaN(humidity) ? "NaN" : humidity);
-
-                double todaysHigh = info.getTodaysHigh();
-                jsonObject.put(WEATHER_INFO_TODAYS_HIGH, Double.isNaN(todaysHigh)
-                        ? "NaN" : todaysHigh);
-
-                double todaysLow = info.getTodaysLow();
-                jsonObject.put(WEATHER_INFO_TODAYS_LOW, Double.isNaN(todaysLow)
-                        ? "NaN" : todaysLow);
-
-                double windSpeed = info.getWindSpeed();
-                double windDirection = info.getWindDirection();
-                jsonObject.put(WEATHER_INFO_WIND_SPEED, Double.isNaN(windSpeed) ? "NaN" : windSpeed)
-                        .put(WEATHER_INFO_WIND_SPEED_UNIT, info.getWindSpeedUnit())
-                        .put(WEATHER_INFO_WIND_SPEED_DIRECTION, Double.isNaN(windDirection)
-                                ? "NaN" : windDirection);
-
-                JSONArray forecastArray = new JSONArray();
-                for (WeatherInfo.DayForecast forecast : info.getForecasts()) {
-                    JSONObject jsonForecast = new JSONObject()
-                        .put(DAY_FORECAST_CONDITION_CODE, forecast.getConditionCode());
-
-                    double low = forecast.getLow();
-                    jsonForecast.put(DAY_FORECAST_LOW, Double.isNaN(low) ? "NaN" : low);
-                    double high = forecast.getHigh();
-                    jsonForecast.put(DAY_FORECAST_HIGH, Double.isNaN(high) ? "NaN" : high);
-                    forecastArray.put(jsonForecast);
-                }
-                jsonObject.put(WEATHER_INFO_FORECAST, forecastArray);
-                serialized = true;
-            } catch (JSONException e) {
-                // We're here because something went wrong while creating the JSON object.
-                // The code below will check for success and proceed accordingly
-            }
-            if (serialized) {
-                editor.putString(Constants.WEATHER_DATA, jsonObject.toString());
-                editor.putBoolean(Constants.WEATHER_FIRST_UPDATE, false);
-            }
-        } else {
-            editor.remove(Constants.WEATHER_DATA);
+            getPrefs(context).edit().putBoolean(Constants.WEATHER_FIRST_UPDATE, false).apply();
         }
-        editor.apply();
     }
 
     public static long lastWeatherUpdateTimestamp(Context context) {
-        return getPrefs(context).getLong(Constants.WEATHER_LAST_UPDATE, 0);
+        return WeatherSnapshot.get(context).lastUpdate;
     }
 
     public static void setLastWeatherUpadteTimestamp(Context context, long timestamp) {
-        getPrefs(context).edit().putLong(Constants.WEATHER_LAST_UPDATE, timestamp).apply();
+        WeatherSnapshot.setLastUpdate(context, timestamp);
     }
 
     public static WeatherInfo getCachedWeatherInfo(Context context) {
-        final String cachedInfo = getPrefs(context).getString(Constants.WEATHER_DATA, null);
-
-        if (cachedInfo == null) return null;
+        return WeatherSnapshot.get(context).info;
+    }
 
+    /**
+     * @return The weather info read from the JSON string the preferences used to hold, or
+     * null if it is malformed. Only needed to migrate to the cache file
+     */
+    static WeatherInfo decodeLegacyWeatherInfo(String cachedInfo) {
         String city;
         int conditionCode;
         double temperature;
@@ -452,8 +400,15 @@ public class Preferences {
     }
 
     public static long lookAheadTimeInMs(Context context) {
+        return lookAheadTimeInMs(lookAheadSetting(context));
+    }
+
+    static String lookAheadSetting(Context context) {
+        return getPrefs(context).getString(Constants.CALENDAR_LOOKAHEAD, "1209600000");
+    }
+
+    static long lookAheadTimeInMs(String preferenceSetting) {
         long lookAheadTime;
-        String preferenceSetting = getPrefs(context).getString(Constants.CALENDAR_LOOKAHEAD, "1209600000");
 
         if (preferenceSetting.equals("today")) {
             long now = System.currentTimeMillis();
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock.misc;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Process wide timings of the widget render stages and counters of what triggered the
+ * renders. Each stage keeps its most recent samples in a ring buffer, the percentiles are
+ * only computed when dumping, so recording a sample is a couple of array stores.
+ */
+public final class RenderStats {
+    public static final int STAGE_TOTAL = 0;
+    public static final int STAGE_CLOCK = 1;
+    public static final int STAGE_ALARM = 2;
+    public static final int STAGE_CALENDAR = 3;
+    public static final int STAGE_WEATHER_DECODE = 4;
+    public static final int STAGE_WEATHER_VIEWS = 5;
+    public static final int STAGE_BITMAP = 6;
+    public static final int STAGE_PUBLISH = 7;
+
+    private static final String[] STAGE_NAMES = {
+        "total", "clock", "alarm", "calendar", "weather decode", "weather views",
+        "bitmap tint", "publish"
+    };
+
+    private static final int SAMPLE_COUNT = 128;
+
+    private static final Stage[] sStages = new Stage[STAGE_NAMES.length];
+    static {
+        for (int i = 0; i < sStages.length; i++) {
+            sStages[i] = new Stage();
+        }
+    }
+
+    private static final HashMap<String, Integer> sTriggers = new HashMap<>();
+
+    private RenderStats() {
+    }
+
+    /**
+     * @return The start time of a stage, to be passed to {@link #end(int, long)}
+     */
+    public static long start() {
+        return SystemClock.elapsedRealtimeNanos();
+    }
+
+    /**
+     * Record the time spent in a stage since the given start time
+     */
+    public static void end(int stage, long startNanos) {
+        sStages[stage].add(SystemClock.elapsedRealtimeNanos() - startNanos);
+    }
+
+    /**
+     * Count a render request, by the intent action that caused it
+     */
+    public static void countTrigger(String trigger) {
+        if (trigger == null) {
+            trigger = "<none>";
+        }
+        synchronized (sTriggers) {
+            Integer count = sTriggers.get(trigger);
+            sTriggers.put(trigger, count == null ? 1 : count + 1);
+        }
+    }
+
+    public static void dump(PrintWriter pw) {
+        pw.println("Render stages (last " + SAMPLE_COUNT + " samples, ms):");
+        for (int i = 0; i < sStages.length; i++) {
+            sStages[i].dump(pw, STAGE_NAMES[i]);
+        }
+
+        pw.println("Render triggers:");
+        synchronized (sTriggers) {
+            for (Map.Entry<String, Integer> entry : sTriggers.entrySet()) {
+                pw.println("  " + entry.getKey() + ": " + entry.getValue());
+            }
+        }
+
+        pw.println("Icon bitmap cache: " + IconUtils.getBitmapCacheSize() + " bytes, "
+                + IconUtils.getBitmapCacheHitCount() + " hits, "
+                + IconUtils.getBitmapCacheMissCount() + " misses");
+    }
+
+    private static class Stage {
+        private final long[] mSamples = new long[SAMPLE_COUNT];
+        private int mNext;
+        private long mCount;
+
+        synchronized void add(long nanos) {
+            mSamples[mNext] = nanos;
+            mNext = (mNext + 1) % SAMPLE_COUNT;
+            mCount++;
+        }
+
+        void dump(PrintWriter pw, String name) {
+            final long[] sorted;
+            final long count;
+            synchronized (this) {
+                count = mCount;
+                sorted = Arrays.copyOf(mSamples, (int) Math.min(count, SAMPLE_COUNT));
+            }
+            if (sorted.length == 0) {
+                pw.println("  " + name + ": no samples");
+                return;
+            }
+
+            Arrays.sort(sorted);
+            pw.println(String.format("  %s: count=%d p50=%.2f p95=%.2f max=%.2f", name, count,
+                    toMillis(sorted[percentileIndex(sorted.length, 50)]),
+                    toMillis(sorted[percentileIndex(sorted.length, 95)]),
+                    toMillis(sorted[sorted.length - 1])));
+        }
+
+        private static int percentileIndex(int length, int percentile) {
+            return Math.min(length - 1, (length * percentile) / 100);
+        }
+
+        private static double toMillis(long nanos) {
+            return nanos / 1000000.0;
+        }
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock.misc;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.AtomicFile;
+import android.util.Log;
+import cyanogenmod.weather.WeatherInfo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The cached weather data and the time of the last update, stored in a versioned binary file
+ * of fixed width fields instead of a JSON string in the settings XML. The file is replaced
+ * atomically on every write and read back in one go.
+ *
+ * Layout (big endian): magic, version, last update time, whether weather data follows, then
+ * the weather fields and the forecast array.
+ */
+final class WeatherCacheFile {
+    private static final String TAG = "WeatherCacheFile";
+    private static final boolean D = Constants.DEBUG;
+
+    private static final String FILE_NAME = "weather_cache.bin";
+    private static final int MAGIC = 0x4c435743; // 'LCWC'
+    private static final int VERSION = 1;
+    // Condition code, low and high of a forecast day
+    private static final int FORECAST_SIZE = 4 + 8 + 8;
+
+    private static final Object sLock = new Object();
+
+    static final class Snapshot {
+        final long lastUpdate;
+        final WeatherInfo info;
+
+        Snapshot(long lastUpdate, WeatherInfo info) {
+            this.lastUpdate = lastUpdate;
+            this.info = info;
+        }
+    }
+
+    private static final Snapshot EMPTY = new Snapshot(0, null);
+
+    private WeatherCacheFile() {
+    }
+
+    static Snapshot read(Context context) {
+        synchronized (sLock) {
+            return readLocked(context);
+        }
+    }
+
+    static void write(Context context, long lastUpdate, WeatherInfo info) {
+        synchronized (sLock) {
+            writeLocked(context, lastUpdate, info);
+        }
+    }
+
+    private static AtomicFile getFile(Context context) {
+        return new AtomicFile(new File(context.getFilesDir(), FILE_NAME));
+    }
+
+    private static Snapshot readLocked(Context context) {
+        try {
+            return decode(getFile(context).readFully());
+        } catch (FileNotFoundException e) {
+            return migrate(context);
+        } catch (IOException e) {
+            Log.w(TAG, "Discarding unreadable weather cache", e);
+            return EMPTY;
+        }
+    }
+
+    private static void writeLocked(Context context, long lastUpdate, WeatherInfo info) {
+        final AtomicFile file = getFile(context);
+        FileOutputStream out = null;
+        try {
+            byte[] data = encode(lastUpdate, info);
+            out = file.startWrite();
+            out.write(data);
+            file.finishWrite(out);
+            if (D) Log.d(TAG, "Wrote " + data.length + " bytes of weather cache");
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write the weather cache", e);
+            if (out != null) {
+                file.failWrite(out);
+            }
+        }
+    }
+
+    /**
+     * Move the weather data from the JSON string in the preferences to the cache file
+     */
+    private static Snapshot migrate(Context context) {
+        final SharedPreferences prefs = Preferences.getPrefs(context);
+        final long lastUpdate = prefs.getLong(Constants.WEATHER_LAST_UPDATE, 0);
+        final String json = prefs.getString(Constants.WEATHER_DATA, null);
+        if (lastUpdate == 0 && json == null) {
+            return EMPTY;
+        }
+
+        final WeatherInfo info = json != null ? Preferences.decodeLegacyWeatherInfo(json) : null;
+        if (D) Log.d(TAG, "Migrating weather cache from preferences, has data: " + (info != null));
+        writeLocked(context, lastUpdate, info);
+        prefs.edit()
+                .remove(Constants.WEATHER_LAST_UPDATE)
+                .remove(Constants.WEATHER_DATA)
+                .apply();
+        return new Snapshot(lastUpdate, info);
+    }
+
+    //===============================================================================================
+    // Codec
+    //===============================================================================================
+    static byte[] encode(long lastUpdate, WeatherInfo info) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeLong(lastUpdate);
+        out.writeBoolean(info != null);
+        if (info != null) {
+            String city = info.getCity();
+            if (city != null) {
+                byte[] cityBytes = city.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(cityBytes.length);
+                out.write(cityBytes);
+            } else {
+                out.writeInt(-1);
+            }
+            out.writeInt(info.getConditionCode());
+            out.writeDouble(info.getTemperature());
+            out.writeInt(info.getTemperatureUnit());
+            out.writeDouble(info.getHumidity());
+            out.writeDouble(info.getWindSpeed());
+            out.writeDouble(info.getWindDirection());
+            out.writeInt(info.getWindSpeedUnit());
+            out.writeDouble(info.getTodaysHigh());
+            out.writeDouble(info.getTodaysLow());
+            out.writeLong(info.getTimestamp());
+
+            List<WeatherInfo.DayForecast> forecasts = info.getForecasts();
+            int count = forecasts != null ? forecasts.size() : 0;
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                WeatherInfo.DayForecast forecast = forecasts.get(i);
+                out.writeInt(forecast.getConditionCode());
+                out.writeDouble(forecast.getLow());
+                out.writeDouble(forecast.getHigh());
+            }
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    static Snapshot decode(byte[] data) throws IOException {
+        try {
+            ByteBuffer in = ByteBuffer.wrap(data);
+            if (in.getInt() != MAGIC) {
+                throw new IOException("Bad magic");
+            }
+            int version = in.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported version " + version);
+            }
+            long lastUpdate = in.getLong();
+            if (in.get() == 0) {
+                return new Snapshot(lastUpdate, null);
+            }
+
+            String city = null;
+            int cityLength = in.getInt();
+            if (cityLength >= 0) {
+                city = new String(data, in.position(), cityLength, StandardCharsets.UTF_8);
+                in.position(in.position() + cityLength);
+            }
+            int conditionCode = in.getInt();
+            double temperature = in.getDouble();
+            int tempUnit = in.getInt();
+            double humidity = in.getDouble();
+            double windSpeed = in.getDouble();
+            double windDirection = in.getDouble();
+            int windSpeedUnit = in.getInt();
+            double todaysHigh = in.getDouble();
+            double todaysLow = in.getDouble();
+            long timestamp = in.getLong();
+
+            int count = in.getInt();
+            if (count < 0 || count > in.remaining() / FORECAST_SIZE) {
+                throw new IOException("Bad forecast count " + count);
+            }
+            ArrayList<WeatherInfo.DayForecast> forecastList = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                int code = in.getInt();
+                double low = in.getDouble();
+                double high = in.getDouble();
+                WeatherInfo.DayForecast.Builder f = new WeatherInfo.DayForecast.Builder(code);
+                if (!Double.isNaN(low)) f.setLow(low);
+                if (!Double.isNaN(high)) f.setHigh(high);
+                forecastList.add(f.build());
+            }
+
+            WeatherInfo.Builder weatherInfo = new WeatherInfo.Builder(city, temperature, tempUnit)
+                    .setWeatherCondition(conditionCode)
+                    .setTimestamp(timestamp);
+            if (!Double.isNaN(humidity)) weatherInfo.setHumidity(humidity);
+            if (!Double.isNaN(windSpeed) && !Double.isNaN(windDirection)) {
+                weatherInfo.setWind(windSpeed, windDirection, windSpeedUnit);
+            }
+            if (forecastList.size() > 0) weatherInfo.setForecast(forecastList);
+            if (!Double.isNaN(todaysHigh)) weatherInfo.setTodaysHigh(todaysHigh);
+            if (!Double.isNaN(todaysLow)) weatherInfo.setTodaysLow(todaysLow);
+            return new Snapshot(lastUpdate, weatherInfo.build());
+        } catch (BufferUnderflowException | IndexOutOfBoundsException
+                | IllegalArgumentException e) {
+            throw new IOException("Truncated or malformed weather cache", e);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock.misc;
+
+import android.content.Context;
+import android.util.Log;
+import com.cyanogenmod.lockclock.weather.WeatherDisplay;
+import cyanogenmod.weather.WeatherInfo;
+
+/**
+ * Process wide holder of the decoded weather cache. The cache file is only read once per
+ * process, after that every write publishes a new immutable snapshot. The generation is
+ * increased whenever the weather data changes, so readers can tell whether anything they
+ * derived from the previous snapshot is still valid. The display strings of the weather are
+ * formatted along with it and kept until the locale or time format changes.
+ */
+public final class WeatherSnapshot {
+    private static final String TAG = "WeatherSnapshot";
+    private static final boolean D = Constants.DEBUG;
+
+    private static volatile WeatherSnapshot sCurrent;
+    private static final Object sLock = new Object();
+
+    public final long generation;
+    public final long lastUpdate;
+    public final WeatherInfo info;
+    private volatile WeatherDisplay mDisplay;
+
+    private WeatherSnapshot(long generation, long lastUpdate, WeatherInfo info,
+            WeatherDisplay display) {
+        this.generation = generation;
+        this.lastUpdate = lastUpdate;
+        this.info = info;
+        mDisplay = display;
+    }
+
+    /**
+     * Returns the display strings of the weather, null if there is none. They are only
+     * formatted again if the locale or the time format changed since.
+     */
+    public WeatherDisplay getDisplay(Context context) {
+        if (info == null) {
+            return null;
+        }
+        WeatherDisplay display = mDisplay;
+        if (display == null || !display.isCurrent(context)) {
+            if (D) Log.d(TAG, "Formatting weather generation " + generation);
+            display = WeatherDisplay.build(context, info);
+            mDisplay = display;
+        }
+        return display;
+    }
+
+    /**
+     * Returns the current snapshot, reading the cache file on first use
+     */
+    public static WeatherSnapshot get(Context context) {
+        WeatherSnapshot current = sCurrent;
+        if (current == null) {
+            synchronized (sLock) {
+                current = getLocked(context);
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Store new weather data, or clear it if info is null, and publish it to the readers
+     */
+    static void publish(Context context, long lastUpdate, WeatherInfo info) {
+        synchronized (sLock) {
+            final WeatherSnapshot current = getLocked(context);
+            WeatherCacheFile.write(context, lastUpdate, info);
+            final WeatherDisplay display = info != null
+                    ? WeatherDisplay.build(context, info) : null;
+            sCurrent = new WeatherSnapshot(current.generation + 1, lastUpdate, info, display);
+            if (D) Log.d(TAG, "Published weather generation " + sCurrent.generation);
+        }
+    }
+
+    /**
+     * Change the time of the last update only, the weather data and its generation are kept
+     */
+    static void setLastUpdate(Context context, long lastUpdate) {
+        synchronized (sLock) {
+            final WeatherSnapshot current = getLocked(context);
+            WeatherCacheFile.write(context, lastUpdate, current.info);
+            sCurrent = new WeatherSnapshot(current.generation, lastUpdate, current.info,
+                    current.mDisplay);
+        }
+    }
+
+    private static WeatherSnapshot getLocked(Context context) {
+        if (sCurrent == null) {
+            WeatherCacheFile.Snapshot cached = WeatherCacheFile.read(context);
+            sCurrent = new WeatherSnapshot(1, cached.lastUpdate, cached.info, null);
+        }
+        return sCurrent;
+    }
+}
@@ -0,0 +1,366 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock.misc;
+
+import android.app.PendingIntent;
+import android.appwidget.AppWidgetManager;
+import android.content.Intent;
+import android.graphics.Bitmap;
+import android.text.Spanned;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.SparseArray;
+import android.widget.RemoteViews;
+
+import java.util.LinkedHashMap;
+
+/**
+ * Records the actions of a single widget render so they can be compared against what was
+ * last pushed to the host. Only the actions that changed are sent on the next update, the full
+ * set is only sent when the layout changes or when the previous state is unknown.
+ */
+public class WidgetRenderState {
+    private static final String TAG = "WidgetRenderState";
+    private static final boolean D = Constants.DEBUG;
+
+    // The last state pushed to the host for each widget id. This is lost with the process,
+    // in which case the next update of each widget is a full one
+    private static final SparseArray<WidgetRenderState> sLastRendered = new SparseArray<>();
+
+    private final int mLayoutId;
+    private final LinkedHashMap<String, Action> mActions = new LinkedHashMap<>();
+
+    public WidgetRenderState(int layoutId) {
+        mLayoutId = layoutId;
+    }
+
+    public int getLayoutId() {
+        return mLayoutId;
+    }
+
+    //===============================================================================================
+    // RemoteViews equivalent setters
+    //===============================================================================================
+    public void setViewVisibility(int viewId, int visibility) {
+        put(new IntAction(viewId, "setVisibility", visibility));
+    }
+
+    public void setTextColor(int viewId, int color) {
+        put(new IntAction(viewId, "setTextColor", color));
+    }
+
+    public void setInt(int viewId, String methodName, int value) {
+        put(new IntAction(viewId, methodName, value));
+    }
+
+    public void setImageViewResource(int viewId, int srcId) {
+        put(new IntAction(viewId, "setImageResource", srcId));
+    }
+
+    public void setImageViewBitmap(int viewId, Bitmap bitmap) {
+        put(new BitmapAction(viewId, bitmap));
+    }
+
+    public void setTextViewText(int viewId, CharSequence text) {
+        put(new TextAction(viewId, text));
+    }
+
+    public void setTextViewTextSize(int viewId, int units, float size) {
+        put(new TextSizeAction(viewId, units, size));
+    }
+
+    public void setOnClickPendingIntent(int viewId, PendingIntent pendingIntent) {
+        put(new PendingIntentAction(viewId, "setOnClickPendingIntent", pendingIntent));
+    }
+
+    public void setPendingIntentTemplate(int viewId, PendingIntent pendingIntent) {
+        put(new PendingIntentAction(viewId, "setPendingIntentTemplate", pendingIntent));
+    }
+
+    public void setRemoteAdapter(int viewId, Intent intent) {
+        put(new RemoteAdapterAction(viewId, intent));
+    }
+
+    public void setEmptyView(int viewId, int emptyViewId) {
+        put(new EmptyViewAction(viewId, emptyViewId));
+    }
+
+    /**
+     * Add all actions recorded by another state, as if its setters had been called on this one
+     */
+    public void putAll(WidgetRenderState other) {
+        for (Action action : other.mActions.values()) {
+            put(action);
+        }
+    }
+
+    private void put(Action action) {
+        // A later action on the same view and method overrides the earlier one, as it would
+        // when applying the RemoteViews
+        mActions.remove(action.mKey);
+        mActions.put(action.mKey, action);
+    }
+
+    //===============================================================================================
+    // Publishing
+    //===============================================================================================
+    /**
+     * Push the recorded state of a widget to the host, either as a partial update carrying
+     * only the changed actions, as a full update, or not at all if nothing changed.
+     */
+    public static void publish(AppWidgetManager appWidgetManager, String packageName,
+            int appWidgetId, WidgetRenderState state) {
+        WidgetRenderState last;
+        synchronized (sLastRendered) {
+            last = sLastRendered.get(appWidgetId);
+        }
+
+        RemoteViews views = new RemoteViews(packageName, state.mLayoutId);
+        if (last == null || !state.canPartiallyUpdate(last)) {
+            for (Action action : state.mActions.values()) {
+                action.apply(views);
+            }
+            if (D) Log.d(TAG, "Full update of widget " + appWidgetId
+                    + " with " + state.mActions.size() + " actions");
+            appWidgetManager.updateAppWidget(appWidgetId, views);
+        } else {
+            int changed = 0;
+            for (Action action : state.mActions.values()) {
+                Action previous = last.mActions.get(action.mKey);
+                if (previous == null || !action.hasSameValue(previous)) {
+                    action.apply(views);
+                    changed++;
+                }
+            }
+            if (D) Log.d(TAG, "Partial update of widget " + appWidgetId
+                    + " with " + changed + " changed actions");
+            if (changed > 0) {
+                appWidgetManager.partiallyUpdateAppWidget(appWidgetId, views);
+            }
+        }
+
+        synchronized (sLastRendered) {
+            sLastRendered.put(appWidgetId, state);
+        }
+    }
+
+    /**
+     * Forget what was last pushed for a widget, the next update of it will be a full one
+     */
+    public static void invalidate(int appWidgetId) {
+        synchronized (sLastRendered) {
+            sLastRendered.remove(appWidgetId);
+        }
+    }
+
+    public static void invalidateAll() {
+        synchronized (sLastRendered) {
+            sLastRendered.clear();
+        }
+    }
+
+    /**
+     * A partial update only adds to what the host already has. If the last render touched a
+     * view property this one leaves alone, only a full update resets it to the layout default.
+     */
+    private boolean canPartiallyUpdate(WidgetRenderState last) {
+        if (last.mLayoutId != mLayoutId) {
+            return false;
+        }
+        for (String key : last.mActions.keySet()) {
+            if (!mActions.containsKey(key)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //===============================================================================================
+    // Recorded actions
+    //===============================================================================================
+    private static abstract class Action {
+        protected final int mViewId;
+        final String mKey;
+
+        Action(int viewId, String methodName) {
+            mViewId = viewId;
+            mKey = viewId + ":" + methodName;
+        }
+
+        abstract void apply(RemoteViews views);
+
+        abstract boolean hasSameValue(Action other);
+    }
+
+    private static class IntAction extends Action {
+        private final String mMethodName;
+        private final int mValue;
+
+        IntAction(int viewId, String methodName, int value) {
+            super(viewId, methodName);
+            mMethodName = methodName;
+            mValue = value;
+        }
+
+        @Override
+        void apply(RemoteViews views) {
+            views.setInt(mViewId, mMethodName, mValue);
+        }
+
+        @Override
+        boolean hasSameValue(Action other) {
+            return mValue == ((IntAction) other).mValue;
+        }
+    }
+
+    private static class BitmapAction extends Action {
+        private final Bitmap mBitmap;
+
+        BitmapAction(int viewId, Bitmap bitmap) {
+            super(viewId, "setImageBitmap");
+            mBitmap = bitmap;
+        }
+
+        @Override
+        void apply(RemoteViews views) {
+            views.setImageViewBitmap(mViewId, mBitmap);
+        }
+
+        @Override
+        boolean hasSameValue(Action other) {
+            Bitmap otherBitmap = ((BitmapAction) other).mBitmap;
+            if (mBitmap == otherBitmap) {
+                return true;
+            }
+            return mBitmap != null && otherBitmap != null && mBitmap.sameAs(otherBitmap);
+        }
+    }
+
+    private static class TextAction extends Action {
+        private final CharSequence mText;
+
+        TextAction(int viewId, CharSequence text) {
+            super(viewId, "setText");
+            mText = text;
+        }
+
+        @Override
+        void apply(RemoteViews views) {
+            views.setTextViewText(mViewId, mText);
+        }
+
+        @Override
+        boolean hasSameValue(Action other) {
+            CharSequence otherText = ((TextAction) other).mText;
+            if (mText == otherText) {
+                return true;
+            }
+            // Styled text can differ in its spans only, don't bother comparing those
+            if (mText instanceof Spanned || otherText instanceof Spanned) {
+                return false;
+            }
+            return TextUtils.equals(mText, otherText);
+        }
+    }
+
+    private static class TextSizeAction extends Action {
+        private final int mUnits;
+        private final float mSize;
+
+        TextSizeAction(int viewId, int units, float size) {
+            super(viewId, "setTextSize");
+            mUnits = units;
+            mSize = size;
+        }
+
+        @Override
+        void apply(RemoteViews views) {
+            views.setTextViewTextSize(mViewId, mUnits, mSize);
+        }
+
+        @Override
+        boolean hasSameValue(Action other) {
+            TextSizeAction o = (TextSizeAction) other;
+            return mUnits == o.mUnits && Float.compare(mSize, o.mSize) == 0;
+        }
+    }
+
+    private static class PendingIntentAction extends Action {
+        private final boolean mTemplate;
+        private final PendingIntent mPendingIntent;
+
+        PendingIntentAction(int viewId, String methodName, PendingIntent pendingIntent) {
+            super(viewId, methodName);
+            mTemplate = "setPendingIntentTemplate".equals(methodName);
+            mPendingIntent = pendingIntent;
+        }
+
+        @Override
+        void apply(RemoteViews views) {
+            if (mTemplate) {
+                views.setPendingIntentTemplate(mViewId, mPendingIntent);
+            } else {
+                views.setOnClickPendingIntent(mViewId, mPendingIntent);
+            }
+        }
+
+        @Override
+        boolean hasSameValue(Action other) {
+            PendingIntent otherIntent = ((PendingIntentAction) other).mPendingIntent;
+            return mPendingIntent == null
+                    ? otherIntent == null : mPendingIntent.equals(otherIntent);
+        }
+    }
+
+    private static class RemoteAdapterAction extends Action {
+        private final Intent mIntent;
+
+        RemoteAdapterAction(int viewId, Intent intent) {
+            super(viewId, "setRemoteAdapter");
+            mIntent = intent;
+        }
+
+        @Override
+        void apply(RemoteViews views) {
+            views.setRemoteAdapter(mViewId, mIntent);
+        }
+
+        @Override
+        boolean hasSameValue(Action other) {
+            return mIntent.filterEquals(((RemoteAdapterAction) other).mIntent);
+        }
+    }
+
+    private static class EmptyViewAction extends Action {
+        private final int mEmptyViewId;
+
+        EmptyViewAction(int viewId, int emptyViewId) {
+            super(viewId, "setEmptyView");
+            mEmptyViewId = emptyViewId;
+        }
+
+        @Override
+        void apply(RemoteViews views) {
+            views.setEmptyView(mViewId, mEmptyViewId);
+        }
+
+        @Override
+        boolean hasSameValue(Action other) {
+            return mEmptyViewId == ((EmptyViewAction) other).mEmptyViewId;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock.misc;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
+import android.util.Log;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Immutable snapshot of the widget settings used by the render paths. The snapshot is built
+ * once, published through a volatile reference and only rebuilt when a setting changes, so
+ * reading a setting while rendering is a plain field load.
+ */
+public final class WidgetSettings {
+    private static final String TAG = "WidgetSettings";
+    private static final boolean D = Constants.DEBUG;
+
+    private static volatile WidgetSettings sCurrent;
+
+    // SharedPreferences only keeps a weak reference to its listeners, hold on to it here
+    private static OnSharedPreferenceChangeListener sListener;
+
+    // Clock
+    public final boolean showDigitalClock;
+    public final boolean showAlarm;
+    public final boolean useBoldFontForHours;
+    public final boolean useBoldFontForMinutes;
+    public final boolean useBoldFontForDateAndAlarms;
+    public final boolean showAmPmIndicator;
+    public final int clockFontColor;
+    public final int clockAlarmFontColor;
+    public final int clockBackgroundColor;
+    public final int clockBackgroundTransparency;
+
+    // Weather
+    public final boolean showWeather;
+    public final boolean showWeatherWhenMinimized;
+    public final boolean showWeatherLocation;
+    public final boolean showWeatherTimestamp;
+    public final boolean invertLowHighTemperature;
+    public final boolean useMetricUnits;
+    public final boolean isFirstWeatherUpdate;
+    public final String weatherIconSet;
+    public final int weatherFontColor;
+    public final int weatherTimestampFontColor;
+
+    // Calendar
+    public final boolean showCalendar;
+    public final boolean showCalendarIcon;
+    public final boolean showEventsWithRemindersOnly;
+    public final boolean showAllDayEvents;
+    public final boolean calendarHighlightUpcomingEvents;
+    public final boolean calendarUpcomingEventsBold;
+    public final int calendarFontColor;
+    public final int calendarDetailsFontColor;
+    public final int calendarUpcomingEventsFontColor;
+    public final int calendarUpcomingEventsDetailsFontColor;
+    public final int calendarLocationMode;
+    public final int calendarDescriptionMode;
+    public final Set<String> calendarsToDisplay;
+    private final String mLookAhead;
+
+    private WidgetSettings(Context context) {
+        showDigitalClock = Preferences.showDigitalClock(context);
+        showAlarm = Preferences.showAlarm(context);
+        useBoldFontForHours = Preferences.useBoldFontForHours(context);
+        useBoldFontForMinutes = Preferences.useBoldFontForMinutes(context);
+        useBoldFontForDateAndAlarms = Preferences.useBoldFontForDateAndAlarms(context);
+        showAmPmIndicator = Preferences.showAmPmIndicator(context);
+        clockFontColor = Preferences.clockFontColor(context);
+        clockAlarmFontColor = Preferences.clockAlarmFontColor(context);
+        clockBackgroundColor = Preferences.clockBackgroundColor(context);
+        clockBackgroundTransparency = Preferences.clockBackgroundTransparency(context);
+
+        showWeather = Preferences.showWeather(context);
+        showWeatherWhenMinimized = Preferences.showWeatherWhenMinimized(context);
+        showWeatherLocation = Preferences.showWeatherLocation(context);
+        showWeatherTimestamp = Preferences.showWeatherTimestamp(context);
+        invertLowHighTemperature = Preferences.invertLowHighTemperature(context);
+        useMetricUnits = Preferences.useMetricUnits(context);
+        isFirstWeatherUpdate = Preferences.isFirstWeatherUpdate(context);
+        weatherIconSet = Preferences.getWeatherIconSet(context);
+        weatherFontColor = Preferences.weatherFontColor(context);
+        weatherTimestampFontColor = Preferences.weatherTimestampFontColor(context);
+
+        showCalendar = Preferences.showCalendar(context);
+        showCalendarIcon = Preferences.showCalendarIcon(context);
+        showEventsWithRemindersOnly = Preferences.showEventsWithRemindersOnly(context);
+        showAllDayEvents = Preferences.showAllDayEvents(context);
+        calendarHighlightUpcomingEvents = Preferences.calendarHighlightUpcomingEvents(context);
+        calendarUpcomingEventsBold = Preferences.calendarUpcomingEventsBold(context);
+        calendarFontColor = Preferences.calendarFontColor(context);
+        calendarDetailsFontColor = Preferences.calendarDetailsFontColor(context);
+        calendarUpcomingEventsFontColor = Preferences.calendarUpcomingEventsFontColor(context);
+        calendarUpcomingEventsDetailsFontColor =
+                Preferences.calendarUpcomingEventsDetailsFontColor(context);
+        calendarLocationMode = Preferences.calendarLocationMode(context);
+        calendarDescriptionMode = Preferences.calendarDescriptionMode(context);
+        Set<String> calendars = Preferences.calendarsToDisplay(context);
+        calendarsToDisplay = calendars == null
+                ? null : Collections.unmodifiableSet(new HashSet<String>(calendars));
+        mLookAhead = Preferences.lookAheadSetting(context);
+    }
+
+    /**
+     * The look ahead time depends on the current time when set to 'today', it is
+     * computed from the stored setting on each call
+     */
+    public long lookAheadTimeInMs() {
+        return Preferences.lookAheadTimeInMs(mLookAhead);
+    }
+
+    /**
+     * The background color with the selected transparency applied
+     */
+    public int backgroundColor() {
+        return (clockBackgroundTransparency << 24) | (clockBackgroundColor & 0xFFFFFF);
+    }
+
+    /**
+     * Returns the current settings snapshot, building it on first use
+     */
+    public static WidgetSettings get(Context context) {
+        WidgetSettings current = sCurrent;
+        if (current == null) {
+            current = rebuild(context.getApplicationContext());
+        }
+        return current;
+    }
+
+    /**
+     * Drop the current snapshot. Used when something outside of the preferences that the
+     * defaults depend on changes, such as the locale.
+     */
+    public static synchronized void invalidate() {
+        sCurrent = null;
+    }
+
+    private static synchronized WidgetSettings rebuild(final Context context) {
+        if (sListener == null) {
+            sListener = new OnSharedPreferenceChangeListener() {
+                @Override
+                public void onSharedPreferenceChanged(SharedPreferences prefs, String key) {
+                    if (isStateKey(key)) {
+                        return;
+                    }
+                    if (D) Log.d(TAG, "Setting " + key + " changed, rebuilding snapshot");
+                    rebuild(context);
+                }
+            };
+            Preferences.getPrefs(context).registerOnSharedPreferenceChangeListener(sListener);
+        }
+
+        WidgetSettings settings = new WidgetSettings(context);
+        sCurrent = settings;
+        return settings;
+    }
+
+    /**
+     * Entries that are written by the app itself on every weather update rather than by the
+     * user, these don't affect the snapshot
+     */
+    private static boolean isStateKey(String key) {
+        return Constants.WEATHER_LAST_UPDATE.equals(key)
+                || Constants.WEATHER_DATA.equals(key);
+    }
+}
@@ -18,6 +18,7 @@
 package com.cyanogenmod.lockclock.misc;
 
 import android.appwidget.AppWidgetManager;
+import android.appwidget.AppWidgetProviderInfo;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
@@ -43,8 +44,8 @@ public class WidgetUtils {
     /**
      *  Decide whether to show the small Weather panel
      */
-    public static boolean showSmallWidget(Context context, int id, boolean digitalClock, boolean isKeyguard) {
-        Bundle options = AppWidgetManager.getInstance(context).getAppWidgetOptions(id);
+    public static boolean showSmallWidget(Context context, Bundle options, boolean digitalClock,
+            boolean isKeyguard) {
         if (options == null) {
             // no data to make the calculation, show the list anyway
             return false;
@@ -78,8 +79,7 @@ public class WidgetUtils {
     /**
      * Decide whether to show the timestamp
      */
-    public static boolean canFitTimestamp(Context context, int id, boolean digitalClock) {
-        Bundle options = AppWidgetManager.getInstance(context).getAppWidgetOptions(id);
+    public static boolean canFitTimestamp(Context context, Bundle options, boolean digitalClock) {
         if (options == null) {
             // no data to make the calculation, show the list anyway
             return true;
@@ -104,8 +104,8 @@ public class WidgetUtils {
     /**
      *  Decide whether to show the full Weather panel
      */
-    public static boolean canFitWeather(Context context, int id, boolean digitalClock, boolean isKeyguard) {
-        Bundle options = AppWidgetManager.getInstance(context).getAppWidgetOptions(id);
+    public static boolean canFitWeather(Context context, Bundle options, boolean digitalClock,
+            boolean isKeyguard) {
         if (options == null) {
             // no data to make the calculation, show the list anyway
             return true;
@@ -138,8 +138,7 @@ public class WidgetUtils {
     /**
      *  Decide whether to show the Calendar panel
      */
-    public static boolean canFitCalendar(Context context, int id, boolean digitalClock) {
-        Bundle options = AppWidgetManager.getInstance(context).getAppWidgetOptions(id);
+    public static boolean canFitCalendar(Context context, Bundle options, boolean digitalClock) {
         if (options == null) {
             // no data to make the calculation, show the list anyway
             return true;
@@ -164,8 +163,7 @@ public class WidgetUtils {
     /**
      *  Calculate the scale factor of the fonts in the widget
      */
-    public static float getScaleRatio(Context context, int id) {
-        Bundle options = AppWidgetManager.getInstance(context).getAppWidgetOptions(id);
+    public static float getScaleRatio(Context context, Bundle options) {
         if (options != null) {
             int minWidth = options.getInt(AppWidgetManager.OPTION_APPWIDGET_MIN_WIDTH);
             if (minWidth == 0) {
@@ -179,6 +177,18 @@ public class WidgetUtils {
         return 1f;
     }
 
+    /**
+     *  Determine if the widget is hosted on the lock screen
+     */
+    public static boolean isKeyguardWidget(Bundle options) {
+        if (options == null || !isTextClockAvailable()) {
+            // This is only available on API 17+, make sure we are not calling it on API16
+            return false;
+        }
+        int category = options.getInt(AppWidgetManager.OPTION_APPWIDGET_HOST_CATEGORY, -1);
+        return category == AppWidgetProviderInfo.WIDGET_CATEGORY_KEYGUARD;
+    }
+
     /**
      *  The following two methods return the default DeskClock intent depending on which
      *  clock package is installed
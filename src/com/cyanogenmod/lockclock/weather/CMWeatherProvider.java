@@ -0,0 +1,55 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock.weather;
+
+import android.content.Context;
+import android.location.Location;
+import cyanogenmod.weather.CMWeatherManager;
+import cyanogenmod.weather.WeatherLocation;
+
+/**
+ * The provider selected in the system weather settings
+ */
+final class CMWeatherProvider implements WeatherProvider {
+    private final CMWeatherManager mWeatherManager;
+
+    CMWeatherProvider(Context context) {
+        mWeatherManager = CMWeatherManager.getInstance(context);
+    }
+
+    @Override
+    public String getLabel() {
+        return mWeatherManager.getActiveWeatherServiceProviderLabel();
+    }
+
+    @Override
+    public int requestWeatherUpdate(WeatherLocation location,
+            CMWeatherManager.WeatherUpdateRequestListener listener) {
+        return mWeatherManager.requestWeatherUpdate(location, listener);
+    }
+
+    @Override
+    public int requestWeatherUpdate(Location location,
+            CMWeatherManager.WeatherUpdateRequestListener listener) {
+        return mWeatherManager.requestWeatherUpdate(location, listener);
+    }
+
+    @Override
+    public void cancelRequest(int requestId) {
+        mWeatherManager.cancelRequest(requestId);
+    }
+}
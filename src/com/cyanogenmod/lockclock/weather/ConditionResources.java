@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock.weather;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.content.res.Resources;
+import android.util.Log;
+import com.cyanogenmod.lockclock.misc.Constants;
+
+import static cyanogenmod.providers.WeatherContract.WeatherColumns.WeatherCode.NOT_AVAILABLE;
+import static cyanogenmod.providers.WeatherContract.WeatherColumns.WeatherCode.ISOLATED_THUNDERSHOWERS;
+
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Lookup tables from weather condition codes to the drawable and string resources
+ * representing them. The tables are resolved once per icon set and locale, so looking up
+ * a condition while rendering is an array access.
+ */
+public final class ConditionResources {
+    private static final String TAG = "ConditionResources";
+    private static final boolean D = Constants.DEBUG;
+
+    // The highest condition code once the offset has been added, see
+    // Utils.addOffsetToConditionCodeFromWeatherContract(). NOT_AVAILABLE gets the slot after it
+    private static final int MAX_CONDITION_CODE = ISOLATED_THUNDERSHOWERS + 3;
+    private static final int NOT_AVAILABLE_INDEX = MAX_CONDITION_CODE + 1;
+    private static final int TABLE_SIZE = NOT_AVAILABLE_INDEX + 1;
+
+    private static final HashMap<String, IconTable> sIconTables = new HashMap<>();
+    private static int[] sConditionNameIds;
+    private static String[] sConditionNames;
+    private static Locale sConditionNamesLocale;
+
+    private ConditionResources() {
+    }
+
+    /**
+     * The drawable resources of an icon set
+     */
+    public static final class IconTable {
+        private final Resources mResources;
+        private final int[] mResourceIds;
+
+        private IconTable(Resources res, int[] resourceIds) {
+            mResources = res;
+            mResourceIds = resourceIds;
+        }
+
+        /**
+         * @return The resources the ids of this table belong to
+         */
+        public Resources getResources() {
+            return mResources;
+        }
+
+        /**
+         * @return The drawable resource id for the condition code, 0 if the set has none
+         */
+        public int getResourceId(int conditionCode) {
+            return mResourceIds[indexOf(conditionCode)];
+        }
+    }
+
+    /**
+     * Returns the table of an icon set, resolving it on first use. External icon sets whose
+     * package is not available fall back to the standard color set.
+     */
+    public static synchronized IconTable getIconTable(Context context, String iconSet) {
+        IconTable table = sIconTables.get(iconSet);
+        if (table != null) {
+            return table;
+        }
+
+        if (iconSet.startsWith("ext:")) {
+            String packageName = iconSet.substring(4);
+            try {
+                Resources res = context.getPackageManager()
+                        .getResourcesForApplication(packageName);
+                table = new IconTable(res, resolve(res, "weather_", "drawable", packageName));
+            } catch (PackageManager.NameNotFoundException e) {
+                // fall back to colored icons, without remembering it in case the package
+                // gets installed later on
+                return getIconTable(context, Constants.COLOR_STD);
+            }
+        } else {
+            Resources res = context.getResources();
+            String prefix = Constants.MONOCHROME.equals(iconSet)
+                    ? "weather_" : "weather_" + iconSet + "_";
+            table = new IconTable(res, resolve(res, prefix, "drawable", context.getPackageName()));
+        }
+
+        if (D) Log.d(TAG, "Resolved icon table for set " + iconSet);
+        sIconTables.put(iconSet, table);
+        return table;
+    }
+
+    /**
+     * Returns the localized name of the condition code, an empty string if there is none
+     */
+    public static synchronized String getConditionName(Context context, int conditionCode) {
+        final Resources res = context.getResources();
+        final Locale locale = res.getConfiguration().locale;
+        if (sConditionNames == null || !locale.equals(sConditionNamesLocale)) {
+            if (sConditionNameIds == null) {
+                sConditionNameIds = resolve(res, "weather_", "string", context.getPackageName());
+            }
+            String[] names = new String[TABLE_SIZE];
+            for (int i = 0; i < TABLE_SIZE; i++) {
+                names[i] = sConditionNameIds[i] != 0 ? res.getString(sConditionNameIds[i]) : "";
+            }
+            if (D) Log.d(TAG, "Resolved condition names for locale " + locale);
+            sConditionNames = names;
+            sConditionNamesLocale = locale;
+        }
+        return sConditionNames[indexOf(conditionCode)];
+    }
+
+    /**
+     * Drop all tables, the resources they were resolved from may have changed
+     */
+    public static synchronized void invalidate() {
+        sIconTables.clear();
+        sConditionNames = null;
+        sConditionNamesLocale = null;
+    }
+
+    /**
+     * Drop the table of an external icon package, its resource ids may point to other
+     * drawables once it was updated or replaced
+     */
+    public static synchronized void invalidatePackage(String packageName) {
+        if (sIconTables.remove("ext:" + packageName) != null) {
+            if (D) Log.d(TAG, "Dropped icon table of package " + packageName);
+        }
+    }
+
+    private static int indexOf(int conditionCode) {
+        int code = Utils.addOffsetToConditionCodeFromWeatherContract(conditionCode);
+        return code >= 0 && code <= MAX_CONDITION_CODE ? code : NOT_AVAILABLE_INDEX;
+    }
+
+    private static int[] resolve(Resources res, String prefix, String type, String packageName) {
+        int[] ids = new int[TABLE_SIZE];
+        for (int i = 0; i < TABLE_SIZE; i++) {
+            int code = i == NOT_AVAILABLE_INDEX ? NOT_AVAILABLE : i;
+            ids[i] = res.getIdentifier(prefix + code, type, packageName);
+        }
+        return ids;
+    }
+}
@@ -23,6 +23,8 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.ResultReceiver;
 import android.util.Log;
 import android.view.View;
 import android.view.View.OnClickListener;
@@ -33,26 +35,42 @@ import android.view.animation.LinearInterpolator;
 import android.view.animation.RotateAnimation;
 import android.widget.ImageView;
 import com.cyanogenmod.lockclock.R;
-import com.cyanogenmod.lockclock.misc.Preferences;
+import com.cyanogenmod.lockclock.misc.WeatherSnapshot;
 import com.cyanogenmod.lockclock.misc.WidgetUtils;
-import cyanogenmod.weather.WeatherInfo;
 
 public class ForecastActivity extends Activity implements OnClickListener {
     private static final String TAG = "ForecastActivity";
 
+    // Whether the refresh asked for here hasn't finished yet
+    private boolean mRefreshing;
+
     private BroadcastReceiver mUpdateReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
-            // Stop the animation
-            ImageView view = (ImageView) findViewById(R.id.weather_refresh);
-            view.setAnimation(null);
-
+            // Any update shows new data, only the result of our own request ends the refresh
             if (!intent.getBooleanExtra(WeatherUpdateService.EXTRA_UPDATE_CANCELLED, false)) {
                 updateForecastPanel();
             }
         }
     };
 
+    private final ResultReceiver mRefreshReceiver = new ResultReceiver(new Handler()) {
+        @Override
+        protected void onReceiveResult(int resultCode, Bundle resultData) {
+            if (!mRefreshing || isDestroyed()) {
+                return;
+            }
+            mRefreshing = false;
+            if (resultCode == WeatherUpdateService.RESULT_CANCELLED) {
+                Log.d(TAG, "Weather refresh cancelled");
+            }
+            ImageView view = (ImageView) findViewById(R.id.weather_refresh);
+            if (view != null) {
+                view.clearAnimation();
+            }
+        }
+    };
+
     @SuppressLint("InlinedApi")
     @Override
     public void onCreate(Bundle savedInstanceState) {
@@ -85,19 +103,24 @@ public class ForecastActivity extends Activity implements OnClickListener {
 
     private void updateForecastPanel() {
         // Get the forecasts data
-        WeatherInfo weather = Preferences.getCachedWeatherInfo(this);
-        if (weather == null) {
+        final WeatherSnapshot weather = WeatherSnapshot.get(this);
+        if (weather.info == null) {
             Log.e(TAG, "Error retrieving forecast data, exiting");
             finish();
             return;
         }
 
-        View fullLayout = ForecastBuilder.buildFullPanel(this, R.layout.forecast_activity, weather);
+        View fullLayout = ForecastBuilder.buildFullPanel(this, R.layout.forecast_activity,
+                weather.info, weather.getDisplay(this));
         setContentView(fullLayout);
         fullLayout.requestFitSystemWindows();
 
         // Register an onClickListener on Weather refresh
         findViewById(R.id.weather_refresh).setOnClickListener(this);
+        if (mRefreshing) {
+            // The panel was rebuilt while the refresh is still running
+            startRefreshAnimation();
+        }
 
         // Register an onClickListener on the fake done button
         findViewById(R.id.button).setOnClickListener(this);
@@ -106,21 +129,27 @@ public class ForecastActivity extends Activity implements OnClickListener {
     @Override
     public void onClick(View v) {
         if (v.getId() != R.id.button) {
-            // Setup anim with desired properties and start the animation
-            ImageView view = (ImageView) findViewById(R.id.weather_refresh);
-            RotateAnimation anim = new RotateAnimation(0.0f, 360.0f,
-                    Animation.RELATIVE_TO_SELF, 0.5f,
-                    Animation.RELATIVE_TO_SELF, 0.5f);
-            anim.setInterpolator(new LinearInterpolator());
-            anim.setRepeatCount(Animation.INFINITE);
-            anim.setDuration(700);
-            view.startAnimation(anim); 
-
-            Intent i = new Intent(this, WeatherUpdateService.class);
-            i.setAction(WeatherUpdateService.ACTION_FORCE_UPDATE);
-            startService(i);
+            if (mRefreshing) {
+                return;
+            }
+            mRefreshing = true;
+            startRefreshAnimation();
+            WeatherUpdateService.requestUpdate(this, WeatherUpdateService.REASON_FORCED,
+                    mRefreshReceiver);
         } else {
             finish();
         }
     }
+
+    private void startRefreshAnimation() {
+        // Setup anim with desired properties and start the animation
+        ImageView view = (ImageView) findViewById(R.id.weather_refresh);
+        RotateAnimation anim = new RotateAnimation(0.0f, 360.0f,
+                Animation.RELATIVE_TO_SELF, 0.5f,
+                Animation.RELATIVE_TO_SELF, 0.5f);
+        anim.setInterpolator(new LinearInterpolator());
+        anim.setRepeatCount(Animation.INFINITE);
+        anim.setDuration(700);
+        view.startAnimation(anim);
+    }
 }
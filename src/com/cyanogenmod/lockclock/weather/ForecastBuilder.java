@@ -19,7 +19,6 @@ package com.cyanogenmod.lockclock.weather;
 import android.annotation.SuppressLint;
 import android.content.Context;
 import android.graphics.Color;
-import android.text.format.DateFormat;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -28,21 +27,14 @@ import android.widget.LinearLayout;
 import android.widget.TextView;
 import com.cyanogenmod.lockclock.R;
 import com.cyanogenmod.lockclock.misc.IconUtils;
-import com.cyanogenmod.lockclock.misc.Preferences;
-import static cyanogenmod.providers.WeatherContract.WeatherColumns.WindSpeedUnit.MPH;
-import static cyanogenmod.providers.WeatherContract.WeatherColumns.WindSpeedUnit.KPH;
-import static cyanogenmod.providers.WeatherContract.WeatherColumns.TempUnit.FAHRENHEIT;
-import static cyanogenmod.providers.WeatherContract.WeatherColumns.TempUnit.CELSIUS;
+import com.cyanogenmod.lockclock.misc.WidgetSettings;
 import cyanogenmod.weather.CMWeatherManager;
 import cyanogenmod.weather.WeatherInfo;
 import cyanogenmod.weather.WeatherInfo.DayForecast;
-import cyanogenmod.weather.util.WeatherUtils;
 
 import java.util.Calendar;
-import java.util.Date;
 import java.util.GregorianCalendar;
 import java.util.List;
-import java.util.Locale;
 import java.util.TimeZone;
 
 public class ForecastBuilder {
@@ -54,43 +46,19 @@ public class ForecastBuilder {
      *
      * @param context
      * @param w = the Weather info object that contains the forecast data
+     * @param display = the display strings formatted for it
      * @return = a built view that can be displayed
      */
     @SuppressLint("SetJavaScriptEnabled")
-    public static View buildFullPanel(Context context, int resourceId, WeatherInfo w) {
+    public static View buildFullPanel(Context context, int resourceId, WeatherInfo w,
+            WeatherDisplay display) {
 
         // Load some basic settings
         LayoutInflater inflater = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE); 
-        int color = Preferences.weatherFontColor(context);
-        boolean invertLowHigh = Preferences.invertLowHighTemperature(context);
-        final boolean useMetric = Preferences.useMetricUnits(context);
-
-        //Make any conversion needed in case the data was not provided in the desired unit
-        double temp = w.getTemperature();
-        double todaysLow = w.getTodaysLow();
-        double todaysHigh = w.getTodaysHigh();
-        int tempUnit = w.getTemperatureUnit();
-        if (tempUnit == FAHRENHEIT && useMetric) {
-            temp = WeatherUtils.fahrenheitToCelsius(temp);
-            todaysLow = WeatherUtils.fahrenheitToCelsius(todaysLow);
-            todaysHigh = WeatherUtils.fahrenheitToCelsius(todaysHigh);
-            tempUnit = CELSIUS;
-        } else if (tempUnit == CELSIUS && !useMetric) {
-            temp = WeatherUtils.celsiusToFahrenheit(temp);
-            todaysLow = WeatherUtils.celsiusToFahrenheit(todaysLow);
-            todaysHigh = WeatherUtils.celsiusToFahrenheit(todaysHigh);
-            tempUnit = FAHRENHEIT;
-        }
-
-        double windSpeed = w.getWindSpeed();
-        int windSpeedUnit = w.getWindSpeedUnit();
-        if (windSpeedUnit == MPH && useMetric) {
-            windSpeedUnit = KPH;
-            windSpeed = Utils.milesToKilometers(windSpeed);
-        } else if (windSpeedUnit == KPH && !useMetric) {
-            windSpeedUnit = MPH;
-            windSpeed = Utils.kilometersToMiles(windSpeed);
-        }
+        final WidgetSettings settings = WidgetSettings.get(context);
+        int color = settings.weatherFontColor;
+        boolean invertLowHigh = settings.invertLowHighTemperature;
+        final int units = WeatherDisplay.units(settings.useMetricUnits);
 
         View view = inflater.inflate(resourceId, null);
 
@@ -103,51 +71,42 @@ public class ForecastBuilder {
         // Set the current conditions
         // Weather Image
         ImageView weatherImage = (ImageView) view.findViewById(R.id.weather_image);
-        String iconsSet = Preferences.getWeatherIconSet(context);
+        String iconsSet = settings.weatherIconSet;
         weatherImage.setImageBitmap(IconUtils.getWeatherIconBitmap(context, iconsSet, color,
                 w.getConditionCode(), IconUtils.getNextHigherDensity(context)));
 
         // Weather Condition
         TextView weatherCondition = (TextView) view.findViewById(R.id.weather_condition);
-        weatherCondition.setText(Utils.resolveWeatherCondition(context, w.getConditionCode()));
+        weatherCondition.setText(display.condition);
 
         // Weather Temps
         TextView weatherTemp = (TextView) view.findViewById(R.id.weather_temp);
-        weatherTemp.setText(WeatherUtils.formatTemperature(temp, tempUnit));
+        weatherTemp.setText(display.temperature[units]);
 
         // Humidity and Wind
         TextView weatherHumWind = (TextView) view.findViewById(R.id.weather_hum_wind);
-        weatherHumWind.setText(Utils.formatHumidity(w.getHumidity()) + ", "
-                + Utils.formatWindSpeed(context, windSpeed, windSpeedUnit) + " "
-                + Utils.resolveWindDirection(context, w.getWindDirection()));
+        weatherHumWind.setText(display.humidityWind[units]);
 
         // City
         TextView city = (TextView) view.findViewById(R.id.weather_city);
-        city.setText(w.getCity());
+        city.setText(display.city);
 
         // Weather Update Time
-        Date lastUpdate = new Date(w.getTimestamp());
-        StringBuilder sb = new StringBuilder();
-        sb.append(DateFormat.format("E", lastUpdate));
-        sb.append(" ");
-        sb.append(DateFormat.getTimeFormat(context).format(lastUpdate));
         TextView updateTime = (TextView) view.findViewById(R.id.update_time);
-        updateTime.setText(sb.toString());
+        updateTime.setText(display.updateTime);
         updateTime.setVisibility(
-                Preferences.showWeatherTimestamp(context) ? View.VISIBLE : View.GONE);
+                settings.showWeatherTimestamp ? View.VISIBLE : View.GONE);
 
         // Weather Temps Panel additional items
-        final String low = WeatherUtils.formatTemperature(todaysLow, tempUnit);
-        final String high = WeatherUtils.formatTemperature(todaysHigh, tempUnit);
         TextView weatherLowHigh = (TextView) view.findViewById(R.id.weather_low_high);
-        weatherLowHigh.setText(invertLowHigh ? high + " | " + low : low + " | " + high);
+        weatherLowHigh.setText(invertLowHigh ? display.highLow[units] : display.lowHigh[units]);
 
         // Get things ready
         LinearLayout forecastView = (LinearLayout) view.findViewById(R.id.forecast_view);
         final View progressIndicator = view.findViewById(R.id.progress_indicator);
 
         // Build the forecast panel
-        if (buildSmallPanel(context, forecastView, w)) {
+        if (buildSmallPanel(context, forecastView, w, display)) {
             // Success, hide the progress container
             progressIndicator.setVisibility(View.GONE);
         } else {
@@ -163,8 +122,10 @@ public class ForecastBuilder {
      * @param context
      * @param smallPanel = a horizontal linearlayout that will contain the forecasts
      * @param w = the Weather info object that contains the forecast data
+     * @param display = the display strings formatted for it
      */
-    public static boolean buildSmallPanel(Context context, LinearLayout smallPanel, WeatherInfo w) {
+    public static boolean buildSmallPanel(Context context, LinearLayout smallPanel, WeatherInfo w,
+            WeatherDisplay display) {
         if (smallPanel == null) {
           Log.d(TAG, "Invalid view passed");
           return false;
@@ -173,9 +134,11 @@ public class ForecastBuilder {
         // Get things ready
         LayoutInflater inflater
               = (LayoutInflater) context.getSystemService(Context.LAYOUT_INFLATER_SERVICE);
-        int color = Preferences.weatherFontColor(context);
-        boolean invertLowHigh = Preferences.invertLowHighTemperature(context);
-        final boolean useMetric = Preferences.useMetricUnits(context);
+        final WidgetSettings settings = WidgetSettings.get(context);
+        int color = settings.weatherFontColor;
+        boolean invertLowHigh = settings.invertLowHighTemperature;
+        final int units = WeatherDisplay.units(settings.useMetricUnits);
+        String iconsSet = settings.weatherIconSet;
 
         List<DayForecast> forecasts = w.getForecasts();
         if (forecasts == null || forecasts.size() <= 1) {
@@ -185,7 +148,8 @@ public class ForecastBuilder {
 
         TimeZone MyTimezone = TimeZone.getDefault();
         Calendar calendar = new GregorianCalendar(MyTimezone);
-        int weatherTempUnit = w.getTemperatureUnit();
+        final String[] forecastTemps = invertLowHigh
+                ? display.forecastHighLow[units] : display.forecastLowHigh[units];
         int numForecasts = forecasts.size();
         int itemSidePadding = context.getResources().getDimensionPixelSize(
                 R.dimen.forecast_item_padding_side);
@@ -199,13 +163,11 @@ public class ForecastBuilder {
 
             // The day of the week
             TextView day = (TextView) forecastItem.findViewById(R.id.forecast_day);
-            day.setText(calendar.getDisplayName(Calendar.DAY_OF_WEEK, Calendar.SHORT,
-                  Locale.getDefault()));
+            day.setText(display.weekdays[calendar.get(Calendar.DAY_OF_WEEK)]);
             calendar.roll(Calendar.DAY_OF_WEEK, true);
 
             // Weather Image
             ImageView image = (ImageView) forecastItem.findViewById(R.id.weather_image);
-            String iconsSet = Preferences.getWeatherIconSet(context);
             final int resId = IconUtils.getWeatherIconResource(context, iconsSet,
                   d.getConditionCode());
             if (resId != 0) {
@@ -216,22 +178,8 @@ public class ForecastBuilder {
             }
 
             // Temperatures
-            double lowTemp = d.getLow();
-            double highTemp = d.getHigh();
-            int tempUnit = weatherTempUnit;
-            if (weatherTempUnit == FAHRENHEIT && useMetric) {
-                lowTemp = WeatherUtils.fahrenheitToCelsius(lowTemp);
-                highTemp = WeatherUtils.fahrenheitToCelsius(highTemp);
-                tempUnit = CELSIUS;
-            } else if (weatherTempUnit == CELSIUS && !useMetric) {
-                lowTemp = WeatherUtils.celsiusToFahrenheit(lowTemp);
-                highTemp = WeatherUtils.celsiusToFahrenheit(highTemp);
-                tempUnit = FAHRENHEIT;
-            }
-            String dayLow = WeatherUtils.formatTemperature(lowTemp, tempUnit);
-            String dayHigh = WeatherUtils.formatTemperature(highTemp, tempUnit);
             TextView temps = (TextView) forecastItem.findViewById(R.id.weather_temps);
-            temps.setText(invertLowHigh ? dayHigh + " " + dayLow : dayLow + " " + dayHigh);
+            temps.setText(forecastTemps[count]);
 
             // Add the view
             smallPanel.addView(forecastItem,
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock.weather;
+
+import android.location.Location;
+import android.util.Log;
+import android.util.LruCache;
+import com.cyanogenmod.lockclock.misc.Constants;
+import cyanogenmod.weather.WeatherInfo;
+import cyanogenmod.weather.WeatherLocation;
+
+/**
+ * Recent weather results keyed by the area they were requested for, so a request for an
+ * area that was fetched shortly before can be answered without asking the provider again.
+ * Device locations are reduced to a geohash cell of a few kilometers, custom locations are
+ * keyed by their city. A handful of areas are kept, the least recently used one is dropped.
+ * The device worker uses the default cache, a worker of its own can be given another one.
+ * Times are given by the caller, on the clock of its worker.
+ */
+final class LocationWeatherCache {
+    private static final String TAG = "LocationWeatherCache";
+    private static final boolean D = Constants.DEBUG;
+
+    private static final int MAX_CELLS = 8;
+    // How long a result is used when updates are manual, otherwise it is the refresh interval
+    static final long MANUAL_TTL_MS = 30L * 60L * 1000L;
+
+    // 5 characters are cells of about 4.9 x 4.9 km
+    private static final int GEOHASH_PRECISION = 5;
+    private static final char[] GEOHASH_BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz".toCharArray();
+
+    private static final LocationWeatherCache sDefault = new LocationWeatherCache();
+
+    private final LruCache<String, Entry> mCache = new LruCache<>(MAX_CELLS);
+
+    static final class Entry {
+        final WeatherInfo info;
+        final long fetchedAt;
+
+        Entry(WeatherInfo info, long fetchedAt) {
+            this.info = info;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+
+    LocationWeatherCache() {
+    }
+
+    /**
+     * @return The cache of the device worker
+     */
+    static LocationWeatherCache getDefault() {
+        return sDefault;
+    }
+
+    static String keyFor(Location location) {
+        return "geo:" + geohash(location.getLatitude(), location.getLongitude());
+    }
+
+    static String keyFor(WeatherLocation location) {
+        String cityId = location.getCityId();
+        if (cityId != null && !cityId.isEmpty()) {
+            return "city:" + cityId;
+        }
+        return "name:" + location.getCity() + "," + location.getCountryId();
+    }
+
+    /**
+     * @return The weather of the area and when it was fetched if that is less than maxAgeMs
+     * ago, null otherwise
+     */
+    Entry get(String key, long now, long maxAgeMs) {
+        Entry entry = mCache.get(key);
+        if (entry == null) {
+            return null;
+        }
+        long age = now - entry.fetchedAt;
+        if (age >= maxAgeMs) {
+            mCache.remove(key);
+            return null;
+        }
+        if (D) Log.d(TAG, "Hit for " + key + ", " + (age / 1000L) + "s old");
+        return entry;
+    }
+
+    void put(String key, WeatherInfo info, long fetchedAt) {
+        mCache.put(key, new Entry(info, fetchedAt));
+    }
+
+    /**
+     * The results depend on the provider that produced them, drop them when it changes
+     */
+    void clear() {
+        mCache.evictAll();
+    }
+
+    private static String geohash(double latitude, double longitude) {
+        double minLat = -90, maxLat = 90;
+        double minLon = -180, maxLon = 180;
+        StringBuilder hash = new StringBuilder(GEOHASH_PRECISION);
+        boolean evenBit = true;
+        int bit = 0;
+        int ch = 0;
+
+        while (hash.length() < GEOHASH_PRECISION) {
+            if (evenBit) {
+                double mid = (minLon + maxLon) / 2;
+                if (longitude >= mid) {
+                    ch = (ch << 1) | 1;
+                    minLon = mid;
+                } else {
+                    ch <<= 1;
+                    maxLon = mid;
+                }
+            } else {
+                double mid = (minLat + maxLat) / 2;
+                if (latitude >= mid) {
+                    ch = (ch << 1) | 1;
+                    minLat = mid;
+                } else {
+                    ch <<= 1;
+                    maxLat = mid;
+                }
+            }
+            evenBit = !evenBit;
+
+            if (++bit == 5) {
+                hash.append(GEOHASH_BASE32[ch]);
+                bit = 0;
+                ch = 0;
+            }
+        }
+        return hash.toString();
+    }
+}
@@ -17,7 +17,6 @@
 package com.cyanogenmod.lockclock.weather;
 
 import android.content.Context;
-import android.content.res.Resources;
 import com.cyanogenmod.lockclock.R;
 import cyanogenmod.app.CMContextConstants;
 import cyanogenmod.providers.WeatherContract;
@@ -87,14 +86,7 @@ public final class Utils {
      * @return The resource name if a valid condition code is passed, empty string otherwise
      */
     public static String resolveWeatherCondition(Context context, int conditionCode) {
-        final Resources res = context.getResources();
-        final int resId = res.getIdentifier("weather_"
-                + Utils.addOffsetToConditionCodeFromWeatherContract(conditionCode), "string",
-                        context.getPackageName());
-        if (resId != 0) {
-            return res.getString(resId);
-        }
-        return "";
+        return ConditionResources.getConditionName(context, conditionCode);
     }
 
     private static String getFormattedValue(double value, String unit) {
@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock.weather;
+
+import android.content.Context;
+import android.text.format.DateFormat;
+import cyanogenmod.weather.WeatherInfo;
+import cyanogenmod.weather.WeatherInfo.DayForecast;
+import cyanogenmod.weather.util.WeatherUtils;
+
+import static cyanogenmod.providers.WeatherContract.WeatherColumns.TempUnit.CELSIUS;
+import static cyanogenmod.providers.WeatherContract.WeatherColumns.TempUnit.FAHRENHEIT;
+import static cyanogenmod.providers.WeatherContract.WeatherColumns.WindSpeedUnit.KPH;
+import static cyanogenmod.providers.WeatherContract.WeatherColumns.WindSpeedUnit.MPH;
+
+import java.text.DateFormatSymbols;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * The display strings of a weather result, formatted once for both unit systems when the
+ * result arrives or the locale, time format or time zone changes. The arrays indexed by unit system
+ * are read with {@link #units(boolean)}.
+ */
+public final class WeatherDisplay {
+    public static final int UNITS_IMPERIAL = 0;
+    public static final int UNITS_METRIC = 1;
+
+    private final Locale mLocale;
+    private final boolean mIs24Hour;
+    private final String mTimeZone;
+
+    public final String condition;
+    public final String city;
+    public final String updateTime;
+    public final String[] temperature = new String[2];
+    // "low | high" and "high | low" for the current conditions panel
+    public final String[] lowHigh = new String[2];
+    public final String[] highLow = new String[2];
+    public final String[] humidityWind = new String[2];
+    // "low high" and "high low" per forecast day, null if there is no forecast to show
+    public final String[][] forecastLowHigh = new String[2][];
+    public final String[][] forecastHighLow = new String[2][];
+    // The short weekday names, indexed by Calendar.DAY_OF_WEEK
+    public final String[] weekdays;
+
+    private WeatherDisplay(Context context, WeatherInfo w, Locale locale, boolean is24Hour,
+            String timeZone) {
+        mLocale = locale;
+        mIs24Hour = is24Hour;
+        mTimeZone = timeZone;
+
+        condition = Utils.resolveWeatherCondition(context, w.getConditionCode());
+        city = w.getCity();
+
+        Date lastUpdate = new Date(w.getTimestamp());
+        updateTime = DateFormat.format("E", lastUpdate) + " "
+                + DateFormat.getTimeFormat(context).format(lastUpdate);
+
+        weekdays = new DateFormatSymbols(locale).getShortWeekdays();
+
+        final String windDirection = Utils.resolveWindDirection(context, w.getWindDirection());
+        final String humidity = Utils.formatHumidity(w.getHumidity());
+        final List<DayForecast> forecasts = w.getForecasts();
+        final boolean hasForecasts = forecasts != null && forecasts.size() > 1;
+
+        final int sourceUnit = w.getTemperatureUnit();
+        for (int units = UNITS_IMPERIAL; units <= UNITS_METRIC; units++) {
+            final int tempUnit = units == UNITS_METRIC ? CELSIUS : FAHRENHEIT;
+            temperature[units] = formatTemperature(w.getTemperature(), sourceUnit, tempUnit);
+            final String low = formatTemperature(w.getTodaysLow(), sourceUnit, tempUnit);
+            final String high = formatTemperature(w.getTodaysHigh(), sourceUnit, tempUnit);
+            lowHigh[units] = low + " | " + high;
+            highLow[units] = high + " | " + low;
+
+            double windSpeed = w.getWindSpeed();
+            int windSpeedUnit = w.getWindSpeedUnit();
+            if (windSpeedUnit == MPH && units == UNITS_METRIC) {
+                windSpeedUnit = KPH;
+                windSpeed = Utils.milesToKilometers(windSpeed);
+            } else if (windSpeedUnit == KPH && units == UNITS_IMPERIAL) {
+                windSpeedUnit = MPH;
+                windSpeed = Utils.kilometersToMiles(windSpeed);
+            }
+            humidityWind[units] = humidity + ", "
+                    + Utils.formatWindSpeed(context, windSpeed, windSpeedUnit) + " "
+                    + windDirection;
+
+            if (hasForecasts) {
+                final int count = forecasts.size();
+                forecastLowHigh[units] = new String[count];
+                forecastHighLow[units] = new String[count];
+                for (int i = 0; i < count; i++) {
+                    final DayForecast d = forecasts.get(i);
+                    final String dayLow = formatTemperature(d.getLow(), sourceUnit, tempUnit);
+                    final String dayHigh = formatTemperature(d.getHigh(), sourceUnit, tempUnit);
+                    forecastLowHigh[units][i] = dayLow + " " + dayHigh;
+                    forecastHighLow[units][i] = dayHigh + " " + dayLow;
+                }
+            }
+        }
+    }
+
+    /**
+     * Format the weather for the current locale, time format and time zone
+     */
+    public static WeatherDisplay build(Context context, WeatherInfo w) {
+        return new WeatherDisplay(context, w, getLocale(context),
+                DateFormat.is24HourFormat(context), TimeZone.getDefault().getID());
+    }
+
+    /**
+     * @return Whether the strings were formatted for the current locale, time format and
+     * time zone
+     */
+    public boolean isCurrent(Context context) {
+        return mIs24Hour == DateFormat.is24HourFormat(context)
+                && mLocale.equals(getLocale(context))
+                && mTimeZone.equals(TimeZone.getDefault().getID());
+    }
+
+    /**
+     * @return The index into the per unit system arrays
+     */
+    public static int units(boolean useMetric) {
+        return useMetric ? UNITS_METRIC : UNITS_IMPERIAL;
+    }
+
+    private static Locale getLocale(Context context) {
+        return context.getResources().getConfiguration().locale;
+    }
+
+    private static String formatTemperature(double value, int sourceUnit, int targetUnit) {
+        int unit = sourceUnit;
+        if (sourceUnit == FAHRENHEIT && targetUnit == CELSIUS) {
+            value = WeatherUtils.fahrenheitToCelsius(value);
+            unit = CELSIUS;
+        } else if (sourceUnit == CELSIUS && targetUnit == FAHRENHEIT) {
+            value = WeatherUtils.celsiusToFahrenheit(value);
+            unit = FAHRENHEIT;
+        }
+        return WeatherUtils.formatTemperature(value, unit);
+    }
+}
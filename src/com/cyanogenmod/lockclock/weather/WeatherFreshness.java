@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock.weather;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+import com.cyanogenmod.lockclock.misc.Constants;
+import com.cyanogenmod.lockclock.misc.Preferences;
+import cyanogenmod.weather.WeatherInfo;
+
+/**
+ * Classifies cached weather by the age of the observation. Fresh data is shown as is, stale
+ * data is still shown, marked as such, while an update is requested in the background, and
+ * expired data isn't shown at all. Renders never wait for the update.
+ */
+public final class WeatherFreshness {
+    private static final String TAG = "WeatherFreshness";
+    private static final boolean D = Constants.DEBUG;
+
+    public static final int TIER_FRESH = 0;
+    public static final int TIER_STALE = 1;
+    public static final int TIER_EXPIRED = 2;
+
+    // Used as the fresh window when updates are manual
+    private static final long DEFAULT_FRESH_MS = 60L * 60L * 1000L;
+    private static final long MIN_EXPIRY_MS = 12L * 60L * 60L * 1000L;
+    private static final int EXPIRY_INTERVALS = 4;
+    private static final long MIN_REVALIDATE_INTERVAL_MS = 15L * 60L * 1000L;
+
+    private static long sLastRevalidation;
+
+    private WeatherFreshness() {
+    }
+
+    /**
+     * @return The freshness tier of the weather data at the given wall clock time
+     */
+    public static int getTier(Context context, WeatherInfo info, long now) {
+        final long age = now - info.getTimestamp();
+        long fresh = Preferences.weatherRefreshIntervalInMs(context);
+        if (fresh == 0) {
+            fresh = DEFAULT_FRESH_MS;
+        }
+        if (age <= fresh) {
+            return TIER_FRESH;
+        }
+        return age <= Math.max(MIN_EXPIRY_MS, fresh * EXPIRY_INTERVALS)
+                ? TIER_STALE : TIER_EXPIRED;
+    }
+
+    /**
+     * Request an update of data that isn't fresh anymore. The tier already tells it is due,
+     * so the update is forced past the check on the time of the last update, and made even
+     * when updates are manual. Renders call this every time, so the requests are limited to
+     * one per few minutes.
+     */
+    public static synchronized void revalidate(Context context) {
+        final long now = SystemClock.elapsedRealtime();
+        if (sLastRevalidation != 0 && now - sLastRevalidation < MIN_REVALIDATE_INTERVAL_MS) {
+            return;
+        }
+        sLastRevalidation = now;
+        if (D) Log.d(TAG, "Weather data isn't fresh, revalidating");
+        WeatherUpdateService.requestUpdate(context, WeatherUpdateService.REASON_REVALIDATE,
+                null);
+    }
+}
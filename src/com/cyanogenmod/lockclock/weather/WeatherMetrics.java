@@ -0,0 +1,296 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock.weather;
+
+import android.content.Context;
+import android.util.AtomicFile;
+import android.util.Log;
+import com.cyanogenmod.lockclock.misc.Constants;
+import cyanogenmod.weather.CMWeatherManager;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Outcome and latency counters of the weather requests, per weather provider, and of the
+ * location lookups they depend on. All counters live in fixed size arrays, at most a few
+ * providers are tracked and the least recently used one is dropped. The counters are saved
+ * to a small file whenever a request finishes so they survive process restarts.
+ */
+final class WeatherMetrics {
+    private static final String TAG = "WeatherMetrics";
+    private static final boolean D = Constants.DEBUG;
+
+    static final int LOCATION_PASSIVE = 0;
+    static final int LOCATION_CACHED = 1;
+    static final int LOCATION_SINGLE_UPDATE = 2;
+    private static final String[] LOCATION_SOURCE_NAMES = {
+        "passive", "cached", "single update"
+    };
+
+    // Upper bounds of the latency histogram buckets, the last bucket is unbounded
+    private static final long[] LATENCY_BUCKETS_MS = {
+        250, 500, 1000, 2000, 5000, 10000, 20000, 30000
+    };
+
+    private static final int MAX_PROVIDERS = 4;
+    private static final String NO_PROVIDER = "<none>";
+
+    private static final String FILE_NAME = "weather_metrics.bin";
+    private static final int MAGIC = 0x4c43574d; // 'LCWM'
+    private static final int VERSION = 1;
+
+    private static class ProviderStats {
+        final int[] latencyHistogram = new int[LATENCY_BUCKETS_MS.length + 1];
+        int completed;
+        int failed;
+        int alreadyInProgress;
+        int timeouts;
+        long wakeLockHeldMs;
+    }
+
+    private static final LinkedHashMap<String, ProviderStats> sProviders =
+            new LinkedHashMap<String, ProviderStats>(MAX_PROVIDERS, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, ProviderStats> eldest) {
+                    return size() > MAX_PROVIDERS;
+                }
+            };
+
+    // Location lookups don't depend on the provider, they are counted once for all of them
+    private static final int[] sLocationCount = new int[LOCATION_SOURCE_NAMES.length];
+    private static final long[] sLocationTotalMs = new long[LOCATION_SOURCE_NAMES.length];
+    private static final long[] sLocationMaxMs = new long[LOCATION_SOURCE_NAMES.length];
+
+    private static boolean sLoaded;
+    private static boolean sDirty;
+
+    private WeatherMetrics() {
+    }
+
+    static synchronized void recordCompleted(Context context, String provider, long latencyMs) {
+        ProviderStats stats = getStats(context, provider);
+        stats.completed++;
+        stats.latencyHistogram[bucketFor(latencyMs)]++;
+        sDirty = true;
+    }
+
+    static synchronized void recordFailed(Context context, String provider, int status,
+            long latencyMs) {
+        ProviderStats stats = getStats(context, provider);
+        if (status == CMWeatherManager.RequestStatus.ALREADY_IN_PROGRESS) {
+            stats.alreadyInProgress++;
+        } else {
+            stats.failed++;
+        }
+        stats.latencyHistogram[bucketFor(latencyMs)]++;
+        sDirty = true;
+    }
+
+    static synchronized void recordTimeout(Context context, String provider) {
+        getStats(context, provider).timeouts++;
+        sDirty = true;
+    }
+
+    static synchronized void recordWakeLockHeld(Context context, String provider, long heldMs) {
+        getStats(context, provider).wakeLockHeldMs += heldMs;
+        sDirty = true;
+    }
+
+    static synchronized void recordLocation(Context context, int source, long latencyMs) {
+        ensureLoaded(context);
+        sLocationCount[source]++;
+        sLocationTotalMs[source] += latencyMs;
+        sLocationMaxMs[source] = Math.max(sLocationMaxMs[source], latencyMs);
+        sDirty = true;
+    }
+
+    /**
+     * Save the counters if anything was recorded since the last time
+     */
+    static synchronized void persist(Context context) {
+        if (!sDirty) {
+            return;
+        }
+        final AtomicFile file = getFile(context);
+        FileOutputStream out = null;
+        try {
+            byte[] data = encode();
+            out = file.startWrite();
+            out.write(data);
+            file.finishWrite(out);
+            sDirty = false;
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write the weather metrics", e);
+            if (out != null) {
+                file.failWrite(out);
+            }
+        }
+    }
+
+    static synchronized void dump(Context context, PrintWriter pw) {
+        ensureLoaded(context);
+        pw.println("Weather providers:");
+        for (Map.Entry<String, ProviderStats> entry : sProviders.entrySet()) {
+            ProviderStats stats = entry.getValue();
+            pw.println("  " + entry.getKey() + ": completed=" + stats.completed
+                    + " failed=" + stats.failed
+                    + " alreadyInProgress=" + stats.alreadyInProgress
+                    + " timeouts=" + stats.timeouts
+                    + " wakeLockHeld=" + (stats.wakeLockHeldMs / 1000L) + "s");
+            StringBuilder histogram = new StringBuilder("    latency:");
+            for (int i = 0; i < stats.latencyHistogram.length; i++) {
+                histogram.append(i < LATENCY_BUCKETS_MS.length
+                        ? " <" + LATENCY_BUCKETS_MS[i] + "ms=" : " more=");
+                histogram.append(stats.latencyHistogram[i]);
+            }
+            pw.println(histogram);
+        }
+        pw.println("Location lookups:");
+        for (int i = 0; i < LOCATION_SOURCE_NAMES.length; i++) {
+            int count = sLocationCount[i];
+            pw.println("  " + LOCATION_SOURCE_NAMES[i] + ": count=" + count
+                    + " avg=" + (count > 0 ? sLocationTotalMs[i] / count : 0) + "ms"
+                    + " max=" + sLocationMaxMs[i] + "ms");
+        }
+    }
+
+    private static ProviderStats getStats(Context context, String provider) {
+        ensureLoaded(context);
+        if (provider == null) {
+            provider = NO_PROVIDER;
+        }
+        ProviderStats stats = sProviders.get(provider);
+        if (stats == null) {
+            stats = new ProviderStats();
+            sProviders.put(provider, stats);
+        }
+        return stats;
+    }
+
+    private static int bucketFor(long latencyMs) {
+        for (int i = 0; i < LATENCY_BUCKETS_MS.length; i++) {
+            if (latencyMs < LATENCY_BUCKETS_MS[i]) {
+                return i;
+            }
+        }
+        return LATENCY_BUCKETS_MS.length;
+    }
+
+    private static AtomicFile getFile(Context context) {
+        return new AtomicFile(new File(context.getFilesDir(), FILE_NAME));
+    }
+
+    private static void ensureLoaded(Context context) {
+        if (sLoaded) {
+            return;
+        }
+        sLoaded = true;
+        try {
+            decode(getFile(context).readFully());
+        } catch (FileNotFoundException e) {
+            // Nothing recorded yet
+        } catch (IOException e) {
+            Log.w(TAG, "Discarding unreadable weather metrics", e);
+            sProviders.clear();
+        }
+    }
+
+    //===============================================================================================
+    // Codec
+    //===============================================================================================
+    private static byte[] encode() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(sProviders.size());
+        for (Map.Entry<String, ProviderStats> entry : sProviders.entrySet()) {
+            byte[] label = entry.getKey().getBytes(StandardCharsets.UTF_8);
+            out.writeInt(label.length);
+            out.write(label);
+            ProviderStats stats = entry.getValue();
+            for (int count : stats.latencyHistogram) {
+                out.writeInt(count);
+            }
+            out.writeInt(stats.completed);
+            out.writeInt(stats.failed);
+            out.writeInt(stats.alreadyInProgress);
+            out.writeInt(stats.timeouts);
+            out.writeLong(stats.wakeLockHeldMs);
+        }
+        for (int i = 0; i < LOCATION_SOURCE_NAMES.length; i++) {
+            out.writeInt(sLocationCount[i]);
+            out.writeLong(sLocationTotalMs[i]);
+            out.writeLong(sLocationMaxMs[i]);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static void decode(byte[] data) throws IOException {
+        try {
+            ByteBuffer in = ByteBuffer.wrap(data);
+            if (in.getInt() != MAGIC) {
+                throw new IOException("Bad magic");
+            }
+            int version = in.getInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported version " + version);
+            }
+            int count = in.getInt();
+            if (count < 0 || count > MAX_PROVIDERS) {
+                throw new IOException("Bad provider count " + count);
+            }
+            for (int i = 0; i < count; i++) {
+                int labelLength = in.getInt();
+                String label = new String(data, in.position(), labelLength,
+                        StandardCharsets.UTF_8);
+                in.position(in.position() + labelLength);
+                ProviderStats stats = new ProviderStats();
+                for (int j = 0; j < stats.latencyHistogram.length; j++) {
+                    stats.latencyHistogram[j] = in.getInt();
+                }
+                stats.completed = in.getInt();
+                stats.failed = in.getInt();
+                stats.alreadyInProgress = in.getInt();
+                stats.timeouts = in.getInt();
+                stats.wakeLockHeldMs = in.getLong();
+                sProviders.put(label, stats);
+            }
+            for (int i = 0; i < LOCATION_SOURCE_NAMES.length; i++) {
+                sLocationCount[i] = in.getInt();
+                sLocationTotalMs[i] = in.getLong();
+                sLocationMaxMs[i] = in.getLong();
+            }
+            if (D) Log.d(TAG, "Loaded metrics of " + count + " providers");
+        } catch (BufferUnderflowException | IndexOutOfBoundsException
+                | IllegalArgumentException e) {
+            throw new IOException("Truncated or malformed weather metrics", e);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock.weather;
+
+import android.location.Location;
+import cyanogenmod.weather.CMWeatherManager;
+import cyanogenmod.weather.WeatherLocation;
+
+/**
+ * The weather service provider the update worker talks to. On devices this is the active
+ * provider behind {@link CMWeatherManager}, the stress harness uses a scripted fake.
+ */
+interface WeatherProvider {
+    /**
+     * @return The label of the active provider, null if there is none
+     */
+    String getLabel();
+
+    /**
+     * @return The id of the request, to be passed to {@link #cancelRequest(int)}
+     */
+    int requestWeatherUpdate(WeatherLocation location,
+            CMWeatherManager.WeatherUpdateRequestListener listener);
+
+    int requestWeatherUpdate(Location location,
+            CMWeatherManager.WeatherUpdateRequestListener listener);
+
+    void cancelRequest(int requestId);
+}
@@ -39,6 +39,7 @@ public class WeatherSourceListenerService extends Service
         if (D) Log.d(TAG, "Weather Source changed " + providerLabel);
         Preferences.setWeatherSource(mContext, providerLabel);
         Preferences.setCachedWeatherInfo(mContext, 0, null);
+        LocationWeatherCache.getDefault().clear();
         //The data contained in WeatherLocation is tightly coupled to the weather provider
         //that generated that data, so we need to clear the cached weather location and let the new
         //weather provider regenerate the data if the user decides to use custom location again
@@ -51,8 +52,8 @@ public class WeatherSourceListenerService extends Service
                 .setAction(ClockWidgetService.ACTION_REFRESH));
 
         if (providerLabel != null) {
-            mContext.startService(new Intent(mContext, WeatherUpdateService.class)
-                    .putExtra(WeatherUpdateService.ACTION_FORCE_UPDATE, true));
+            WeatherUpdateService.requestUpdate(mContext,
+                    WeatherUpdateService.REASON_PROVIDER_CHANGED, null);
         }
     }
 
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock.weather;
+
+import android.app.job.JobParameters;
+import android.app.job.JobService;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.PersistableBundle;
+import android.util.Log;
+import android.util.SparseArray;
+import com.cyanogenmod.lockclock.misc.Constants;
+
+/**
+ * Runs the weather update jobs once the network is available. The request itself is made
+ * by the worker, the job stays open until it finished.
+ */
+public class WeatherUpdateJobService extends JobService {
+    private static final String TAG = "WeatherUpdateJobService";
+    private static final boolean D = Constants.DEBUG;
+
+    static final String EXTRA_REASON = "reason";
+    static final String EXTRA_FORCE = "force";
+
+    // The jobs handed to the worker, by job id. Only touched on the main thread
+    private final SparseArray<WorkerJob> mRunningJobs = new SparseArray<>();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private class WorkerJob implements WeatherUpdateWorker.Job {
+        private final JobParameters mParams;
+
+        WorkerJob(JobParameters params) {
+            mParams = params;
+        }
+
+        @Override
+        public void finish(final boolean reschedule) {
+            // Called on the worker thread
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (mRunningJobs.get(mParams.getJobId()) == WorkerJob.this) {
+                        mRunningJobs.remove(mParams.getJobId());
+                        jobFinished(mParams, reschedule);
+                        WeatherUpdateScheduler.onJobFinished(WeatherUpdateJobService.this,
+                                mParams.getJobId());
+                    }
+                }
+            });
+        }
+    }
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        final PersistableBundle extras = params.getExtras();
+        final String reason = extras.getString(EXTRA_REASON,
+                WeatherUpdateService.REASON_PERIODIC);
+        final boolean force = extras.getBoolean(EXTRA_FORCE, false);
+        if (D) Log.d(TAG, "Job " + params.getJobId() + " started: " + reason);
+
+        final WeatherUpdateWorker worker = WeatherUpdateWorker.get(this);
+        if (!worker.isProcessing() && !WeatherUpdateService.shouldUpdate(this, force)) {
+            if (D) Log.d(TAG, "Update not needed, finishing job");
+            worker.onJobSkipped(force);
+            WeatherUpdateService.sendCancelledBroadcast(this);
+            return false;
+        }
+
+        final WorkerJob job = new WorkerJob(params);
+        mRunningJobs.put(params.getJobId(), job);
+        WeatherUpdateScheduler.onJobStarted(params.getJobId());
+        worker.submit(new WeatherUpdateWorker.UpdateRequest(reason, force, null, job));
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        if (D) Log.d(TAG, "Job " + params.getJobId() + " stopped");
+        final WorkerJob job = mRunningJobs.get(params.getJobId());
+        if (job != null) {
+            mRunningJobs.remove(params.getJobId());
+            WeatherUpdateWorker.get(this).onStopJob(job);
+            WeatherUpdateScheduler.onJobFinished(this, params.getJobId());
+        }
+        // Run it again once the constraints are met
+        return true;
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock.weather;
+
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.PersistableBundle;
+import android.os.SystemClock;
+import android.text.format.DateFormat;
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+import com.cyanogenmod.lockclock.misc.Constants;
+import com.cyanogenmod.lockclock.misc.Preferences;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+
+/**
+ * Decides when the weather updates run. Periodic updates are a persisted periodic job with a
+ * flex window, so the system can batch them with other work and defer them while the device
+ * is idle. All update jobs only run while the network is available, failed updates are
+ * retried by the job scheduler with an exponential backoff. The recent decisions are kept
+ * for dumpsys.
+ */
+public final class WeatherUpdateScheduler {
+    private static final String TAG = "WeatherUpdateScheduler";
+    private static final boolean D = Constants.DEBUG;
+
+    private static final int JOB_ID_PERIODIC = 1;
+    // Separate ids, so a request that is only run if due never replaces a forced one
+    private static final int JOB_ID_FORCED = 2;
+    private static final int JOB_ID_IF_DUE = 3;
+
+    private static final long RETRY_BASE_DELAY_MS = 60L * 1000L;
+
+    // The job may run up to this fraction of the interval early
+    private static final int FLEX_DIVISOR = 4;
+
+    private static final int MAX_DECISIONS = 32;
+
+    private static final ArrayDeque<String> sDecisions = new ArrayDeque<>(MAX_DECISIONS);
+
+    // The jobs being run, scheduling one of them again would stop it. The one off jobs
+    // requested meanwhile are scheduled once it finished
+    private static final SparseBooleanArray sRunningJobs = new SparseBooleanArray();
+    private static final SparseArray<JobInfo> sDeferredJobs = new SparseArray<>();
+
+    private WeatherUpdateScheduler() {
+    }
+
+    /**
+     * Run a forced update right away, e.g. because a location became available. The reason
+     * is one of the WeatherUpdateService.REASON_* values
+     */
+    public static synchronized void scheduleImmediate(Context context, String reason) {
+        WeatherUpdateService.requestUpdate(context, reason, null);
+        record("immediate update: " + reason);
+    }
+
+    /**
+     * Schedule a one off update job, run as soon as the network is available
+     */
+    static synchronized void scheduleJob(Context context, String reason, boolean force) {
+        final int jobId = force ? JOB_ID_FORCED : JOB_ID_IF_DUE;
+        PersistableBundle extras = new PersistableBundle();
+        extras.putString(WeatherUpdateJobService.EXTRA_REASON, reason);
+        extras.putBoolean(WeatherUpdateJobService.EXTRA_FORCE, force);
+        JobInfo job = newJobBuilder(context, jobId)
+                .setExtras(extras)
+                .build();
+        final String type = force ? "forced" : "if due";
+        if (sRunningJobs.get(jobId)) {
+            sDeferredJobs.put(jobId, job);
+            record("update job deferred until the running one finished (" + type + "): "
+                    + reason);
+            return;
+        }
+        getJobScheduler(context).schedule(job);
+        record("update job scheduled (" + type + "): " + reason);
+    }
+
+    /**
+     * The job service started running a job
+     */
+    static synchronized void onJobStarted(int jobId) {
+        sRunningJobs.put(jobId, true);
+    }
+
+    /**
+     * The job service finished a job or the system stopped it, schedule the one off job
+     * requested while it ran
+     */
+    static synchronized void onJobFinished(Context context, int jobId) {
+        sRunningJobs.delete(jobId);
+        final JobInfo deferred = sDeferredJobs.get(jobId);
+        if (deferred != null) {
+            sDeferredJobs.remove(jobId);
+            getJobScheduler(context).schedule(deferred);
+            record("deferred update job scheduled");
+        }
+    }
+
+    /**
+     * Make sure the periodic update job runs at the configured interval. The job is left
+     * alone if it already does, so its period isn't restarted.
+     */
+    public static synchronized void scheduleNext(Context context, String reason) {
+        final JobScheduler scheduler = getJobScheduler(context);
+        final long interval = Preferences.weatherRefreshIntervalInMs(context);
+        if (interval == 0) {
+            scheduler.cancel(JOB_ID_PERIODIC);
+            record("no periodic job, interval is manual: " + reason);
+            return;
+        }
+
+        final JobInfo pending = scheduler.getPendingJob(JOB_ID_PERIODIC);
+        if (pending != null && pending.getIntervalMillis() == interval) {
+            if (D) Log.v(TAG, "Periodic job already scheduled: " + reason);
+            return;
+        }
+
+        final long flex = interval / FLEX_DIVISOR;
+        JobInfo job = newJobBuilder(context, JOB_ID_PERIODIC)
+                .setPeriodic(interval, flex)
+                .setPersisted(true)
+                .build();
+        scheduler.schedule(job);
+        record("periodic job every " + formatDuration(interval) + " (flex "
+                + formatDuration(flex) + "): " + reason);
+    }
+
+    /**
+     * An update succeeded, make sure the periodic updates continue
+     */
+    public static synchronized void onUpdateSucceeded(Context context) {
+        scheduleNext(context, "update succeeded");
+    }
+
+    /**
+     * An update failed
+     *
+     * @return Whether the job should be retried with backoff
+     */
+    public static synchronized boolean onUpdateFailed(Context context) {
+        final long interval = Preferences.weatherRefreshIntervalInMs(context);
+        if (interval == 0) {
+            record("update failed, not retrying as the interval is manual");
+            return false;
+        }
+
+        final long lastUpdate = Preferences.lastWeatherUpdateTimestamp(context);
+        if (lastUpdate != 0 && lastUpdate + interval > SystemClock.elapsedRealtime()) {
+            // A forced update failed while the data is still current, a retry would be
+            // skipped as not due anyway
+            scheduleNext(context, "forced update failed");
+            return false;
+        }
+
+        record("update failed, retrying with backoff");
+        return true;
+    }
+
+    public static synchronized void cancel(Context context) {
+        final JobScheduler scheduler = getJobScheduler(context);
+        scheduler.cancel(JOB_ID_PERIODIC);
+        scheduler.cancel(JOB_ID_FORCED);
+        scheduler.cancel(JOB_ID_IF_DUE);
+        sDeferredJobs.clear();
+        record("update jobs cancelled");
+    }
+
+    public static synchronized void dump(PrintWriter pw) {
+        pw.println("Scheduling decisions:");
+        for (String decision : sDecisions) {
+            pw.println("  " + decision);
+        }
+    }
+
+    private static JobInfo.Builder newJobBuilder(Context context, int jobId) {
+        return new JobInfo.Builder(jobId,
+                new ComponentName(context, WeatherUpdateJobService.class))
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+                .setBackoffCriteria(RETRY_BASE_DELAY_MS, JobInfo.BACKOFF_POLICY_EXPONENTIAL);
+    }
+
+    private static JobScheduler getJobScheduler(Context context) {
+        return (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+    }
+
+    private static void record(String decision) {
+        if (D) Log.d(TAG, decision);
+        if (sDecisions.size() == MAX_DECISIONS) {
+            sDecisions.removeFirst();
+        }
+        sDecisions.addLast(DateFormat.format("MM-dd HH:mm:ss", System.currentTimeMillis())
+                + " " + decision);
+    }
+
+    private static String formatDuration(long millis) {
+        return (millis / 1000L) + "s";
+    }
+}
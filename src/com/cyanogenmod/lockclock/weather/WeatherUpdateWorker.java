@@ -0,0 +1,747 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock.weather;
+
+import android.content.Context;
+import android.content.Intent;
+import android.location.Criteria;
+import android.location.Location;
+import android.location.LocationManager;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.ResultReceiver;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+import android.widget.Toast;
+import com.cyanogenmod.lockclock.ClockWidgetProvider;
+import com.cyanogenmod.lockclock.R;
+import com.cyanogenmod.lockclock.misc.Constants;
+import com.cyanogenmod.lockclock.misc.Preferences;
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.GooglePlayServicesUtil;
+import cyanogenmod.weather.CMWeatherManager;
+import cyanogenmod.weather.WeatherInfo;
+import cyanogenmod.weather.WeatherLocation;
+
+import java.util.ArrayList;
+
+/**
+ * Process wide thread running the weather requests of the update jobs. Only one request is
+ * sent to the provider at a time, requests arriving meanwhile are merged into it or queued
+ * behind it. The jobs that started a request are finished once it completed, the system
+ * holds a wakelock for them until then.
+ *
+ * The provider, the thread the worker runs on, its clock and everything it does with a
+ * result are pluggable, so the stress harness can run a separate worker against a scripted
+ * provider on a plain JVM.
+ */
+final class WeatherUpdateWorker {
+    private static final String TAG = "WeatherUpdateWorker";
+    private static final boolean D = Constants.DEBUG;
+
+    private static final long WEATHER_UPDATE_REQUEST_TIMEOUT_MS = 30L * 1000L;
+    private static final long OUTDATED_LOCATION_THRESHOLD_MILLIS = 10L * 60L * 1000L; // 10 minutes
+    private static final float LOCATION_ACCURACY_THRESHOLD_METERS = 50000;
+
+    private static final String REASON_FOLLOW_UP = "follow-up";
+
+    private static WeatherUpdateWorker sInstance;
+
+    /**
+     * A running job, kept open until the request it started or joined finished
+     */
+    interface Job {
+        void finish(boolean reschedule);
+    }
+
+    /**
+     * Where the worker gets its input from, the thread and clock it runs on and what it does
+     * with the outcome of a request
+     */
+    interface Host {
+        /**
+         * Run the task on the worker thread, after the tasks posted before it
+         */
+        void post(Runnable task);
+
+        /**
+         * Run the task on the worker thread once the delay passed, unless it was removed
+         */
+        void postDelayed(Runnable task, long delayMs);
+
+        void removeCallbacks(Runnable task);
+
+        /**
+         * @return Milliseconds since a fixed point, not affected by changes of the wall clock
+         */
+        long elapsedRealtime();
+
+        /**
+         * @return The location set by the user, null to use the device location
+         */
+        WeatherLocation getCustomWeatherLocation();
+
+        /**
+         * @return The device location, null if there is none yet
+         */
+        Location getCurrentLocation();
+
+        WeatherInfo getCachedWeatherInfo();
+
+        /**
+         * @return The interval of the periodic updates, 0 if updates are manual
+         */
+        long getRefreshInterval();
+
+        /**
+         * @param fetchedAt When the provider produced the result, on the clock of the worker.
+         * Earlier than now for a result answered from the area cache.
+         */
+        void onUpdateCompleted(WeatherInfo info, long fetchedAt);
+
+        /**
+         * @return Whether the jobs should be retried with backoff
+         */
+        boolean onUpdateFailed(int status);
+
+        /**
+         * @return Whether the jobs should be retried with backoff
+         */
+        boolean onUpdateTimedOut();
+
+        void onRequestFinished(boolean cancelled);
+
+        void scheduleJob(String reason, boolean force);
+    }
+
+    /**
+     * A request for an update, made by a job, by a caller waiting for the outcome, or both
+     */
+    static class UpdateRequest {
+        final String reason;
+        final boolean force;
+        final ResultReceiver receiver;
+        final Job job;
+
+        UpdateRequest(String reason, boolean force, ResultReceiver receiver, Job job) {
+            this.reason = reason;
+            this.force = force;
+            this.receiver = receiver;
+            this.job = job;
+        }
+    }
+
+    private final WeatherProvider mProvider;
+    private final Host mHost;
+    private final LocationWeatherCache mAreaCache;
+    private final long mTimeoutMs;
+    // Only the device worker records metrics, null otherwise
+    private final Context mMetricsContext;
+    private final Runnable mTimeoutTask = new Runnable() {
+        @Override
+        public void run() {
+            onWeatherRequestTimeout();
+        }
+    };
+
+    private volatile boolean mIsProcessingWeatherUpdate = false;
+    private int mRequestId;
+    // Increased with every request, answers to an earlier one are ignored
+    private int mRequestSeq;
+    // The area the pending request is for, its result is cached under this key
+    private String mPendingCacheKey;
+    // The provider the request in flight was sent to, when it was sent (0 when the request
+    // was answered locally), and when processing started
+    private String mProviderLabel;
+    private long mRequestSentAt;
+    private long mProcessingStartedAt;
+
+    // The requests waiting for the request in flight, those waiting for the follow-up
+    // request queued behind it, and the callers waiting for a scheduled job to start.
+    // Guarded by 'this'
+    private final ArrayList<UpdateRequest> mWaiting = new ArrayList<>();
+    private final ArrayList<UpdateRequest> mFollowUp = new ArrayList<>();
+    private final ArrayList<UpdateRequest> mCallersAwaitingJob = new ArrayList<>();
+    private boolean mFollowUpQueued;
+    // The requests submitted but not picked up by the worker thread yet
+    private int mSubmittedRequests;
+
+    /**
+     * A worker of its own, e.g. for the stress harness. Give it an area cache of its own, so
+     * it leaves the one of the device worker alone.
+     */
+    WeatherUpdateWorker(WeatherProvider provider, Host host, LocationWeatherCache areaCache,
+            long timeoutMs, Context metricsContext) {
+        mProvider = provider;
+        mHost = host;
+        mAreaCache = areaCache;
+        mTimeoutMs = timeoutMs;
+        mMetricsContext = metricsContext;
+    }
+
+    /**
+     * @return The worker running the requests of the update jobs
+     */
+    static synchronized WeatherUpdateWorker get(Context context) {
+        if (sInstance == null) {
+            final Context appContext = context.getApplicationContext();
+            sInstance = new WeatherUpdateWorker(new CMWeatherProvider(appContext),
+                    new DeviceHost(appContext), LocationWeatherCache.getDefault(),
+                    WEATHER_UPDATE_REQUEST_TIMEOUT_MS, appContext);
+        }
+        return sInstance;
+    }
+
+    public boolean isProcessing() {
+        return mIsProcessingWeatherUpdate;
+    }
+
+    /**
+     * @return Whether nothing is in flight, queued or waiting for a job to start
+     */
+    synchronized boolean isIdle() {
+        return !mIsProcessingWeatherUpdate && mWaiting.isEmpty() && mFollowUp.isEmpty()
+                && mCallersAwaitingJob.isEmpty() && mSubmittedRequests == 0;
+    }
+
+    private boolean isCurrentRequest(int seq) {
+        if (!mIsProcessingWeatherUpdate || seq != mRequestSeq) {
+            if (D) Log.d(TAG, "Ignoring the answer to an earlier request");
+            return false;
+        }
+        return true;
+    }
+
+    private void complete(final int seq, final WeatherInfo info, final long fetchedAt) {
+        mHost.post(new Runnable() {
+            @Override
+            public void run() {
+                if (isCurrentRequest(seq)) {
+                    onWeatherRequestCompleted(info, fetchedAt);
+                }
+            }
+        });
+    }
+
+    private void fail(final int seq, final int status) {
+        mHost.post(new Runnable() {
+            @Override
+            public void run() {
+                if (isCurrentRequest(seq)) {
+                    onWeatherRequestFailed(status);
+                }
+            }
+        });
+    }
+
+    /**
+     * Forwards the answer of the provider, tagged with the request it belongs to
+     */
+    private class RequestListener implements CMWeatherManager.WeatherUpdateRequestListener {
+        private final int mSeq;
+
+        RequestListener(int seq) {
+            mSeq = seq;
+        }
+
+        @Override
+        public void onWeatherRequestCompleted(int state, WeatherInfo weatherInfo) {
+            if (state == CMWeatherManager.RequestStatus.COMPLETED) {
+                complete(mSeq, weatherInfo, mHost.elapsedRealtime());
+            } else {
+                fail(mSeq, state);
+            }
+        }
+    }
+
+    /**
+     * Hand a request to the worker. If nothing is in flight, a job is scheduled to run it once
+     * the network is available, otherwise it is merged into the request in flight.
+     */
+    void request(UpdateRequest request) {
+        synchronized (this) {
+            // Attached in the same step as the check, the request in flight can't finish
+            // in between and leave it behind
+            if (mIsProcessingWeatherUpdate) {
+                attachLocked(request);
+                return;
+            }
+            if (request.receiver != null) {
+                mCallersAwaitingJob.add(request);
+            }
+        }
+        mHost.scheduleJob(request.reason, request.force);
+    }
+
+    /**
+     * Run a request right away, called by the job once its constraints are met
+     */
+    void submit(final UpdateRequest request) {
+        synchronized (this) {
+            mSubmittedRequests++;
+        }
+        mHost.post(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (WeatherUpdateWorker.this) {
+                    mSubmittedRequests--;
+                }
+                onNewWeatherRequest(request);
+            }
+        });
+    }
+
+    /**
+     * A job won't be run when the update isn't due, let those waiting for it know. The
+     * callers of a forced update keep waiting for its own job when one that was only run if
+     * due is skipped.
+     */
+    void onJobSkipped(boolean force) {
+        synchronized (this) {
+            for (int i = mCallersAwaitingJob.size() - 1; i >= 0; i--) {
+                final UpdateRequest caller = mCallersAwaitingJob.get(i);
+                if (force || !caller.force) {
+                    caller.receiver.send(WeatherUpdateService.RESULT_CANCELLED, null);
+                    mCallersAwaitingJob.remove(i);
+                }
+            }
+        }
+    }
+
+    /**
+     * The system stopped a job, e.g. because the network was lost
+     */
+    void onStopJob(final Job job) {
+        mHost.post(new Runnable() {
+            @Override
+            public void run() {
+                onJobStopped(job);
+            }
+        });
+    }
+
+    /**
+     * Merge a request into the one in flight, must hold the lock of the worker
+     */
+    private void attachLocked(UpdateRequest request) {
+        if (WeatherUpdateService.REASON_LOCATION_CHANGED.equals(request.reason)
+                || WeatherUpdateService.REASON_PROVIDER_CHANGED.equals(request.reason)) {
+            // The result in flight is for the previous location or provider, a single
+            // follow-up request covers all changes arriving meanwhile
+            Log.d(TAG, "Already processing weather update, queueing follow-up ("
+                    + request.reason + ")");
+            mFollowUpQueued = true;
+            mFollowUp.add(request);
+        } else {
+            Log.d(TAG, "Already processing weather update, attaching "
+                    + request.reason + " request");
+            mWaiting.add(request);
+        }
+    }
+
+    private void onNewWeatherRequest(UpdateRequest request) {
+        final boolean force = request.force;
+        boolean useAreaCache = usesAreaCache(request);
+        synchronized (this) {
+            if (mIsProcessingWeatherUpdate) {
+                attachLocked(request);
+                return;
+            }
+            if (D) Log.d(TAG, "Starting " + request.reason + " weather request");
+            mWaiting.add(request);
+            for (UpdateRequest caller : mCallersAwaitingJob) {
+                mWaiting.add(new UpdateRequest(request.reason, force, caller.receiver, null));
+                // A caller waiting for a refresh gets a fresh result
+                useAreaCache &= usesAreaCache(caller);
+            }
+            mCallersAwaitingJob.clear();
+            // Set along with draining the callers, request() either sees it or has added
+            // its caller in time to be drained
+            mIsProcessingWeatherUpdate = true;
+        }
+        mRequestSeq++;
+        mProcessingStartedAt = mHost.elapsedRealtime();
+        mProviderLabel = mProvider.getLabel();
+        mRequestSentAt = 0;
+
+        final WeatherLocation customWeatherLocation = mHost.getCustomWeatherLocation();
+        mPendingCacheKey = null;
+        if (customWeatherLocation != null) {
+            final String cacheKey = LocationWeatherCache.keyFor(customWeatherLocation);
+            if (useAreaCache && replyFromCache(cacheKey)) {
+                return;
+            }
+            mPendingCacheKey = cacheKey;
+            mRequestSentAt = mHost.elapsedRealtime();
+            mRequestId = mProvider.requestWeatherUpdate(customWeatherLocation,
+                    new RequestListener(mRequestSeq));
+            if (D) Log.d(TAG, "Request submitted using WeatherLocation");
+            startTimeout();
+        } else {
+            final Location location = mHost.getCurrentLocation();
+            if (location != null) {
+                final String cacheKey = LocationWeatherCache.keyFor(location);
+                if (useAreaCache && replyFromCache(cacheKey)) {
+                    return;
+                }
+                mPendingCacheKey = cacheKey;
+                mRequestSentAt = mHost.elapsedRealtime();
+                mRequestId = mProvider.requestWeatherUpdate(location,
+                        new RequestListener(mRequestSeq));
+                if (D) Log.d(TAG, "Request submitted using Location");
+                startTimeout();
+            } else {
+                // work with cached location from last request for now
+                // a listener to update it is already scheduled if possible
+                WeatherInfo cachedInfo = mHost.getCachedWeatherInfo();
+                if (cachedInfo != null) {
+                    complete(mRequestSeq, cachedInfo, mHost.elapsedRealtime());
+                    if (D) Log.d(TAG, "Returning cached weather data [ "
+                            + cachedInfo.toString()+ " ]");
+                } else {
+                    fail(mRequestSeq, CMWeatherManager.RequestStatus.FAILED);
+                }
+            }
+        }
+    }
+
+    /**
+     * A refresh asked for by the user, a request to a new provider and the follow-up to it
+     * always reach the provider. Other requests may be answered by a recent result for the
+     * area, e.g. when returning to one fetched shortly before.
+     */
+    private static boolean usesAreaCache(UpdateRequest request) {
+        return WeatherUpdateService.REASON_PERIODIC.equals(request.reason)
+                || WeatherUpdateService.REASON_LOCATION_CHANGED.equals(request.reason)
+                || WeatherUpdateService.REASON_REVALIDATE.equals(request.reason);
+    }
+
+    /**
+     * Complete the request with the result for the same area, if it was fetched within the
+     * refresh interval. The result keeps the time it was fetched, so the next update is due
+     * as if it was the last one.
+     */
+    private boolean replyFromCache(String cacheKey) {
+        final long interval = mHost.getRefreshInterval();
+        final LocationWeatherCache.Entry entry = mAreaCache.get(cacheKey,
+                mHost.elapsedRealtime(),
+                interval > 0 ? interval : LocationWeatherCache.MANUAL_TTL_MS);
+        if (entry == null) {
+            return false;
+        }
+        if (D) Log.d(TAG, "Answering request for " + cacheKey + " from the area cache");
+        complete(mRequestSeq, entry.info, entry.fetchedAt);
+        return true;
+    }
+
+    /**
+     * The job keeps the device awake, so a plain delayed message is enough to time out
+     */
+    private void startTimeout() {
+        mHost.postDelayed(mTimeoutTask, mTimeoutMs);
+    }
+
+    private void cancelTimeout() {
+        mHost.removeCallbacks(mTimeoutTask);
+    }
+
+    private void onWeatherRequestCompleted(WeatherInfo result, long fetchedAt) {
+        if (D) Log.d(TAG, "Weather update received, caching data and updating widget");
+        cancelTimeout();
+        if (mRequestSentAt != 0 && mMetricsContext != null) {
+            WeatherMetrics.recordCompleted(mMetricsContext, mProviderLabel,
+                    mHost.elapsedRealtime() - mRequestSentAt);
+        }
+        if (mPendingCacheKey != null) {
+            mAreaCache.put(mPendingCacheKey, result, fetchedAt);
+            mPendingCacheKey = null;
+        }
+        mHost.onUpdateCompleted(result, fetchedAt);
+        broadcastAndCleanUp(false, result, false);
+    }
+
+    private void onWeatherRequestFailed(int status) {
+        if (D) Log.d(TAG, "Weather refresh failed ["+status+"]");
+        cancelTimeout();
+        if (mRequestSentAt != 0 && mMetricsContext != null) {
+            WeatherMetrics.recordFailed(mMetricsContext, mProviderLabel, status,
+                    mHost.elapsedRealtime() - mRequestSentAt);
+        }
+        broadcastAndCleanUp(true, null, mHost.onUpdateFailed(status));
+    }
+
+    private void onWeatherRequestTimeout() {
+        if (!mIsProcessingWeatherUpdate) {
+            return;
+        }
+        if (D) Log.d(TAG, "Cancelling active weather request after timeout");
+        mProvider.cancelRequest(mRequestId);
+        if (mMetricsContext != null) {
+            WeatherMetrics.recordTimeout(mMetricsContext, mProviderLabel);
+        }
+        broadcastAndCleanUp(true, null, mHost.onUpdateTimedOut());
+    }
+
+    private void onJobStopped(Job job) {
+        boolean jobsLeft = false;
+        synchronized (this) {
+            // The system considers the job finished already
+            removeJob(mWaiting, job);
+            removeJob(mFollowUp, job);
+            for (UpdateRequest request : mWaiting) {
+                jobsLeft |= request.job != null;
+            }
+        }
+        if (mIsProcessingWeatherUpdate && !jobsLeft) {
+            // Nothing keeps the device awake for the request in flight anymore, the stopped
+            // job is rescheduled by the system
+            if (D) Log.d(TAG, "Job stopped, cancelling active weather request");
+            cancelTimeout();
+            mProvider.cancelRequest(mRequestId);
+            broadcastAndCleanUp(true, null, false);
+        }
+    }
+
+    private static void removeJob(ArrayList<UpdateRequest> requests, Job job) {
+        for (int i = requests.size() - 1; i >= 0; i--) {
+            if (requests.get(i).job == job) {
+                requests.remove(i);
+            }
+        }
+    }
+
+    private void broadcastAndCleanUp(boolean updateCancelled, WeatherInfo info,
+            boolean reschedule) {
+        mHost.onRequestFinished(updateCancelled);
+
+        if (mMetricsContext != null) {
+            // The system holds a wakelock for the jobs while the request is processed
+            WeatherMetrics.recordWakeLockHeld(mMetricsContext, mProviderLabel,
+                    mHost.elapsedRealtime() - mProcessingStartedAt);
+            WeatherMetrics.persist(mMetricsContext);
+        }
+        mPendingCacheKey = null;
+
+        final ArrayList<UpdateRequest> finished;
+        final boolean followUp;
+        synchronized (this) {
+            mIsProcessingWeatherUpdate = false;
+            finished = new ArrayList<>(mWaiting);
+            mWaiting.clear();
+            followUp = mFollowUpQueued;
+            if (followUp) {
+                mFollowUpQueued = false;
+                // The jobs that asked for the follow-up stay open until it finished
+                mWaiting.addAll(mFollowUp);
+                mFollowUp.clear();
+            }
+        }
+
+        Bundle data = null;
+        if (info != null) {
+            data = new Bundle();
+            data.putParcelable(WeatherUpdateService.EXTRA_WEATHER_INFO, info);
+        }
+        final int resultCode = updateCancelled ? WeatherUpdateService.RESULT_CANCELLED
+                : WeatherUpdateService.RESULT_COMPLETED;
+        for (UpdateRequest request : finished) {
+            if (request.receiver != null) {
+                request.receiver.send(resultCode, data);
+            }
+            if (request.job != null) {
+                request.job.finish(reschedule);
+            }
+        }
+
+        if (followUp) {
+            if (D) Log.d(TAG, "Running the queued follow-up request");
+            submit(new UpdateRequest(REASON_FOLLOW_UP, true, null, null));
+        }
+    }
+
+    //===============================================================================================
+    // Device host
+    //===============================================================================================
+    /**
+     * Reads the settings and the device location, stores the results and schedules the jobs
+     */
+    private static final class DeviceHost implements Host {
+        private static final Criteria sLocationCriteria;
+        static {
+            sLocationCriteria = new Criteria();
+            sLocationCriteria.setPowerRequirement(Criteria.POWER_LOW);
+            sLocationCriteria.setAccuracy(Criteria.ACCURACY_COARSE);
+            sLocationCriteria.setCostAllowed(false);
+        }
+
+        private final Context mContext;
+        private final Handler mHandler;
+        private final Handler mMainHandler;
+
+        DeviceHost(Context context) {
+            mContext = context;
+            HandlerThread thread = new HandlerThread("weather-update-worker");
+            thread.start();
+            mHandler = new Handler(thread.getLooper());
+            mMainHandler = new Handler(Looper.getMainLooper());
+        }
+
+        @Override
+        public void post(Runnable task) {
+            mHandler.post(task);
+        }
+
+        @Override
+        public void postDelayed(Runnable task, long delayMs) {
+            mHandler.postDelayed(task, delayMs);
+        }
+
+        @Override
+        public void removeCallbacks(Runnable task) {
+            mHandler.removeCallbacks(task);
+        }
+
+        @Override
+        public long elapsedRealtime() {
+            return SystemClock.elapsedRealtime();
+        }
+
+        @Override
+        public WeatherLocation getCustomWeatherLocation() {
+            if (Preferences.useCustomWeatherLocation(mContext)) {
+                return Preferences.getCustomWeatherLocation(mContext);
+            }
+            return null;
+        }
+
+        @Override
+        public WeatherInfo getCachedWeatherInfo() {
+            return Preferences.getCachedWeatherInfo(mContext);
+        }
+
+        @Override
+        public long getRefreshInterval() {
+            return Preferences.weatherRefreshIntervalInMs(mContext);
+        }
+
+        @Override
+        public void onUpdateCompleted(WeatherInfo info, long fetchedAt) {
+            Preferences.setCachedWeatherInfo(mContext, fetchedAt, info);
+            WeatherUpdateScheduler.onUpdateSucceeded(mContext);
+
+            Intent updateIntent = new Intent(mContext, ClockWidgetProvider.class);
+            mContext.sendBroadcast(updateIntent);
+        }
+
+        @Override
+        public boolean onUpdateFailed(int status) {
+            if (status == CMWeatherManager.RequestStatus.ALREADY_IN_PROGRESS) {
+                if (D) Log.d(TAG, "A request is already in progress, no need to schedule again");
+                return false;
+            } else if (status == CMWeatherManager.RequestStatus.FAILED) {
+                //Something went wrong, let the job back off and retry
+                //A force update might happen earlier anyway
+                return WeatherUpdateScheduler.onUpdateFailed(mContext);
+            } else {
+                //Wait until the next update is due
+                WeatherUpdateScheduler.scheduleNext(mContext, "update failed, status " + status);
+                return false;
+            }
+        }
+
+        @Override
+        public boolean onUpdateTimedOut() {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    final String activeProviderLabel = CMWeatherManager.getInstance(mContext)
+                            .getActiveWeatherServiceProviderLabel();
+                    final String noData = mContext.getString(
+                            R.string.weather_cannot_reach_provider, activeProviderLabel);
+                    Toast.makeText(mContext, noData, Toast.LENGTH_SHORT).show();
+                }
+            });
+            return WeatherUpdateScheduler.onUpdateFailed(mContext);
+        }
+
+        @Override
+        public void onRequestFinished(boolean cancelled) {
+            Intent finishedIntent = new Intent(WeatherUpdateService.ACTION_UPDATE_FINISHED);
+            finishedIntent.putExtra(WeatherUpdateService.EXTRA_UPDATE_CANCELLED, cancelled);
+            mContext.sendBroadcast(finishedIntent);
+        }
+
+        @Override
+        public void scheduleJob(String reason, boolean force) {
+            WeatherUpdateScheduler.scheduleJob(mContext, reason, force);
+        }
+
+        @Override
+        public Location getCurrentLocation() {
+            final long start = SystemClock.elapsedRealtime();
+            final LocationManager lm
+                    = (LocationManager) mContext.getSystemService(Context.LOCATION_SERVICE);
+            Location location = lm.getLastKnownLocation(LocationManager.PASSIVE_PROVIDER);
+            if (D) Log.v(TAG, "Current location is " + location);
+
+            if (location != null && location.getAccuracy() > LOCATION_ACCURACY_THRESHOLD_METERS) {
+                if (D) Log.d(TAG, "Ignoring inaccurate location");
+                location = null;
+            }
+
+            // If lastKnownLocation is not present (because none of the apps in the
+            // device has requested the current location to the system yet) or outdated,
+            // then try to get the current location use the provider that best matches the criteria.
+            boolean needsUpdate = location == null;
+            if (location != null) {
+                long delta = System.currentTimeMillis() - location.getTime();
+                needsUpdate = delta > OUTDATED_LOCATION_THRESHOLD_MILLIS;
+            }
+            if (needsUpdate) {
+                if (D) Log.d(TAG, "Getting best location provider");
+                String locationProvider = lm.getBestProvider(sLocationCriteria, true);
+                if (TextUtils.isEmpty(locationProvider)) {
+                    Log.e(TAG, "No available location providers matching criteria.");
+                } else if (isGooglePlayServicesAvailable()
+                        && locationProvider.equals(LocationManager.GPS_PROVIDER)) {
+                    // Since Google Play services is available,
+                    // let's conserve battery power and not depend on the device's GPS.
+                    Log.i(TAG, "Google Play Services available; Ignoring GPS provider.");
+                } else {
+                    WeatherUpdateService.WeatherLocationListener.registerIfNeeded(mContext,
+                            locationProvider);
+                }
+            }
+            if (location != null) {
+                // An outdated location is still used until the single update delivers one
+                WeatherMetrics.recordLocation(mContext, needsUpdate
+                        ? WeatherMetrics.LOCATION_CACHED : WeatherMetrics.LOCATION_PASSIVE,
+                        SystemClock.elapsedRealtime() - start);
+            }
+            return location;
+        }
+
+        private boolean isGooglePlayServicesAvailable() {
+            int result = GooglePlayServicesUtil.isGooglePlayServicesAvailable(mContext);
+            return result == ConnectionResult.SUCCESS
+                    || result == ConnectionResult.SERVICE_VERSION_UPDATE_REQUIRED;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock.calendar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class EventStoreTest {
+    private static final long HOUR = 60 * 60 * 1000L;
+
+    //===============================================================================================
+    // Ordering
+    //===============================================================================================
+    @Test
+    public void sortedInputKeepsOrder() {
+        final EventStore.Builder builder = new EventStore.Builder(0);
+        for (int i = 0; i < 10; i++) {
+            add(builder, i, i * HOUR, i * HOUR + HOUR, 0);
+        }
+        assertIds(builder.build(), 0, 1, 2, 3, 4, 5, 6, 7, 8, 9);
+    }
+
+    @Test
+    public void fewOutOfPlaceAreMovedIntoPlace() {
+        // Two events out of place in 16 stay below the insertion sort limit
+        final EventStore.Builder builder = new EventStore.Builder(0);
+        for (int i = 0; i < 16; i++) {
+            if (i != 3 && i != 11) {
+                add(builder, i, i * HOUR, i * HOUR + HOUR, 0);
+            }
+        }
+        add(builder, 3, 3 * HOUR, 4 * HOUR, 0);
+        add(builder, 11, 11 * HOUR, 12 * HOUR, 0);
+        assertIds(builder.build(), 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15);
+    }
+
+    @Test
+    public void reversedInputIsSorted() {
+        // Every event out of place takes the merge sort
+        final EventStore.Builder builder = new EventStore.Builder(0);
+        for (int i = 19; i >= 0; i--) {
+            add(builder, i, i * HOUR, i * HOUR + HOUR, 0);
+        }
+        assertIds(builder.build(), 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17,
+                18, 19);
+    }
+
+    @Test
+    public void allDayEventsComeFirstAtTheSameStart() {
+        final EventStore.Builder builder = new EventStore.Builder(0);
+        add(builder, 1, HOUR, 2 * HOUR, 0);
+        add(builder, 2, HOUR, 3 * HOUR, 0);
+        add(builder, 3, HOUR, 25 * HOUR, EventStore.FLAG_ALL_DAY);
+        add(builder, 4, 0, HOUR, 0);
+        final EventStore store = builder.build();
+        // Timed events at the same start keep the order they were added in
+        assertIds(store, 4, 3, 1, 2);
+        assertTrue(store.isAllDay(1));
+        assertFalse(store.isAllDay(2));
+    }
+
+    @Test
+    public void allDayEventsComeFirstAfterMergeSort() {
+        final EventStore.Builder builder = new EventStore.Builder(0);
+        for (int i = 9; i >= 0; i--) {
+            add(builder, 100 + i, i * HOUR, i * HOUR + HOUR, 0);
+            add(builder, i, i * HOUR, i * HOUR + 24 * HOUR, EventStore.FLAG_ALL_DAY);
+        }
+        final EventStore store = builder.build();
+        assertEquals(20, store.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i, store.getId(2 * i));
+            assertEquals(100 + i, store.getId(2 * i + 1));
+        }
+    }
+
+    @Test
+    public void columnsMoveWithTheirEvent() {
+        final EventStore.Builder builder = new EventStore.Builder(0);
+        builder.add(2, "b", "description b", "location b", "details b", 2 * HOUR, 3 * HOUR,
+                EventStore.FLAG_MULTI_DAY);
+        builder.add(1, "a", "description a", "location a", "details a", HOUR, 2 * HOUR, 0);
+        final EventStore store = builder.build();
+        assertEquals(1, store.getId(0));
+        assertEquals("a", store.getTitle(0));
+        assertEquals("description a", store.getDescription(0));
+        assertEquals("location a", store.getLocation(0));
+        assertEquals("details a", store.getDetails(0));
+        assertEquals("details b", store.getDetails(1));
+        assertEquals(3 * HOUR, store.getEnd(1));
+        assertTrue(store.isMultiDay(1));
+        assertEquals(HOUR, store.getMaxDuration());
+    }
+
+    //===============================================================================================
+    // Lookups
+    //===============================================================================================
+    @Test
+    public void firstStartingAtOrAfterEmpty() {
+        assertEquals(0, EventStore.EMPTY.firstStartingAtOrAfter(0));
+        assertEquals(0, EventStore.EMPTY.firstStartingAtOrAfter(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void firstStartingAtOrAfter() {
+        final EventStore store = new EventStore.Builder(0)
+                .add(1, null, null, null, null, 10 * HOUR, 11 * HOUR, 0)
+                .add(2, null, null, null, null, 20 * HOUR, 21 * HOUR, 0)
+                .add(3, null, null, null, null, 20 * HOUR, 22 * HOUR, 0)
+                .add(4, null, null, null, null, 30 * HOUR, 31 * HOUR, 0)
+                .build();
+        assertEquals(0, store.firstStartingAtOrAfter(0));
+        assertEquals(0, store.firstStartingAtOrAfter(10 * HOUR));
+        assertEquals(1, store.firstStartingAtOrAfter(10 * HOUR + 1));
+        // The first of several events starting at the same time
+        assertEquals(1, store.firstStartingAtOrAfter(20 * HOUR));
+        assertEquals(3, store.firstStartingAtOrAfter(20 * HOUR + 1));
+        assertEquals(3, store.firstStartingAtOrAfter(30 * HOUR));
+        assertEquals(4, store.firstStartingAtOrAfter(30 * HOUR + 1));
+    }
+
+    @Test
+    public void nextBoundaryEmpty() {
+        assertEquals(Long.MAX_VALUE, EventStore.EMPTY.getNextBoundaryAfter(0));
+    }
+
+    @Test
+    public void nextBoundaryIsStartOrEnd() {
+        // A long event ending after the start of a later one
+        final EventStore store = new EventStore.Builder(0)
+                .add(1, null, null, null, null, 0, 10 * HOUR, 0)
+                .add(2, null, null, null, null, 2 * HOUR, 3 * HOUR, 0)
+                .add(3, null, null, null, null, 5 * HOUR, 12 * HOUR, 0)
+                .build();
+        assertEquals(0, store.getNextBoundaryAfter(-1));
+        assertEquals(2 * HOUR, store.getNextBoundaryAfter(0));
+        assertEquals(3 * HOUR, store.getNextBoundaryAfter(2 * HOUR));
+        assertEquals(5 * HOUR, store.getNextBoundaryAfter(3 * HOUR));
+        assertEquals(10 * HOUR, store.getNextBoundaryAfter(5 * HOUR));
+        assertEquals(12 * HOUR, store.getNextBoundaryAfter(10 * HOUR));
+        assertEquals(Long.MAX_VALUE, store.getNextBoundaryAfter(12 * HOUR));
+    }
+
+    private static void add(EventStore.Builder builder, long id, long start, long end,
+            int flags) {
+        builder.add(id, "event " + id, null, null, null, start, end, flags);
+    }
+
+    private static void assertIds(EventStore store, long... ids) {
+        assertEquals(ids.length, store.size());
+        for (int i = 0; i < ids.length; i++) {
+            assertEquals("index " + i, ids[i], store.getId(i));
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock.weather;
+
+import android.location.Location;
+import cyanogenmod.providers.WeatherContract;
+import cyanogenmod.weather.CMWeatherManager;
+import cyanogenmod.weather.WeatherInfo;
+import cyanogenmod.weather.WeatherLocation;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A provider answering with scripted outcomes after scripted delays, for the stress harness.
+ * Requests beyond the script complete right away. It keeps count of the requests it saw and
+ * of how many of them were in flight at once.
+ */
+final class FakeWeatherProvider implements WeatherProvider {
+    // Latency of a request that is never answered
+    static final long HANG = -1;
+
+    private static class Step {
+        final int status;
+        final long latencyMs;
+
+        Step(int status, long latencyMs) {
+            this.status = status;
+            this.latencyMs = latencyMs;
+        }
+    }
+
+    private static final Step DEFAULT_STEP =
+            new Step(CMWeatherManager.RequestStatus.COMPLETED, 0);
+
+    private final ScheduledExecutorService mExecutor;
+    private final ArrayDeque<Step> mScript = new ArrayDeque<>();
+    // The answers not delivered yet, by request id. Hanging requests have a null answer
+    private final HashMap<Integer, ScheduledFuture<?>> mOutstanding = new HashMap<>();
+    private volatile String mLabel;
+
+    private int mNextRequestId;
+    private int mRequests;
+    private int mAnswered;
+    private int mCancelled;
+    private int mMaxInFlight;
+
+    FakeWeatherProvider(ScheduledExecutorService executor, String label) {
+        mExecutor = executor;
+        mLabel = label;
+    }
+
+    /**
+     * Answer a coming request with the status after the given delay, or never if it is HANG
+     */
+    synchronized void script(int status, long latencyMs) {
+        mScript.addLast(new Step(status, latencyMs));
+    }
+
+    /**
+     * Switch to another provider, the requests in flight are still answered
+     */
+    void setLabel(String label) {
+        mLabel = label;
+    }
+
+    synchronized int getRequestCount() {
+        return mRequests;
+    }
+
+    synchronized int getAnsweredCount() {
+        return mAnswered;
+    }
+
+    synchronized int getCancelledCount() {
+        return mCancelled;
+    }
+
+    synchronized int getInFlightCount() {
+        return mOutstanding.size();
+    }
+
+    synchronized int getMaxInFlightCount() {
+        return mMaxInFlight;
+    }
+
+    synchronized void resetMaxInFlightCount() {
+        mMaxInFlight = mOutstanding.size();
+    }
+
+    @Override
+    public String getLabel() {
+        return mLabel;
+    }
+
+    @Override
+    public int requestWeatherUpdate(WeatherLocation location,
+            CMWeatherManager.WeatherUpdateRequestListener listener) {
+        return request(listener);
+    }
+
+    @Override
+    public int requestWeatherUpdate(Location location,
+            CMWeatherManager.WeatherUpdateRequestListener listener) {
+        return request(listener);
+    }
+
+    @Override
+    public synchronized void cancelRequest(int requestId) {
+        if (mOutstanding.containsKey(requestId)) {
+            ScheduledFuture<?> answer = mOutstanding.remove(requestId);
+            if (answer != null) {
+                answer.cancel(false);
+            }
+            mCancelled++;
+        }
+    }
+
+    private synchronized int request(
+            final CMWeatherManager.WeatherUpdateRequestListener listener) {
+        final int requestId = ++mNextRequestId;
+        final Step step = mScript.isEmpty() ? DEFAULT_STEP : mScript.removeFirst();
+        final String label = mLabel;
+        mRequests++;
+
+        ScheduledFuture<?> answer = null;
+        if (step.latencyMs != HANG) {
+            answer = mExecutor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (FakeWeatherProvider.this) {
+                        if (!mOutstanding.containsKey(requestId)) {
+                            // Cancelled meanwhile
+                            return;
+                        }
+                        mOutstanding.remove(requestId);
+                        mAnswered++;
+                    }
+                    WeatherInfo info = null;
+                    if (step.status == CMWeatherManager.RequestStatus.COMPLETED) {
+                        info = new WeatherInfo.Builder(label, 20,
+                                WeatherContract.WeatherColumns.TempUnit.CELSIUS)
+                                .setWeatherCondition(
+                                        WeatherContract.WeatherColumns.WeatherCode.SUNNY)
+                                .setTimestamp(System.currentTimeMillis())
+                                .build();
+                    }
+                    listener.onWeatherRequestCompleted(step.status, info);
+                }
+            }, step.latencyMs, TimeUnit.MILLISECONDS);
+        }
+        mOutstanding.put(requestId, answer);
+        mMaxInFlight = Math.max(mMaxInFlight, mOutstanding.size());
+        return requestId;
+    }
+}
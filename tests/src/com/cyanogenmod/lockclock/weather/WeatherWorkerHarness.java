@@ -0,0 +1,451 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock.weather;
+
+import android.location.Location;
+import android.os.Bundle;
+import android.os.ResultReceiver;
+import cyanogenmod.weather.CMWeatherManager;
+import cyanogenmod.weather.WeatherInfo;
+import cyanogenmod.weather.WeatherLocation;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives random sequences of update requests, job stops, location and provider changes
+ * through a separate update worker talking to a {@link FakeWeatherProvider}, and checks the
+ * invariants after each sequence: every job and every caller is finished exactly once, at
+ * most one request is in flight, jobs are only rescheduled after a failure, and results are
+ * cached for the area they were requested for. Run by {@link WeatherWorkerStressTest}.
+ *
+ * The worker has an area cache of its own, the ones of the widget are left alone.
+ */
+final class WeatherWorkerHarness {
+    private static final int MAX_OPS_PER_SEQUENCE = 6;
+    private static final long TIMEOUT_MS = 20;
+    private static final long MAX_LATENCY_MS = 5;
+    private static final long IDLE_DEADLINE_MS = 5000;
+    // Longer than a run, results stay in the area cache
+    private static final long REFRESH_INTERVAL_MS = 60L * 60L * 1000L;
+    private static final int MAX_REPORTED_ERRORS = 10;
+
+    private static final int OP_PERIODIC_JOB = 0;
+    private static final int OP_FORCED_REQUEST = 1;
+    private static final int OP_LOCATION_CHANGE = 2;
+    private static final int OP_PROVIDER_SWITCH = 3;
+    private static final int OP_STOP_JOB = 4;
+    private static final int OP_COUNT = 5;
+
+    private final Random mRandom;
+    private final FakeWeatherProvider mProvider;
+    private final LocationWeatherCache mAreaCache = new LocationWeatherCache();
+    private final HarnessHost mHost = new HarnessHost();
+    private final WeatherUpdateWorker mWorker;
+
+    private final ArrayList<HarnessJob> mRunningJobs = new ArrayList<>();
+    private final ArrayList<String> mErrors = new ArrayList<>();
+    private int mErrorCount;
+    private int mJobsStarted;
+    private int mJobsFinished;
+    private int mJobsStopped;
+    private int mCallers;
+    private int mCallersNotified;
+    private int mProviderSwitches;
+
+    // The threads the worker and the provider answers run on, in place of their loopers
+    private final ScheduledThreadPoolExecutor mWorkerThread = new ScheduledThreadPoolExecutor(1);
+    private final ScheduledThreadPoolExecutor mProviderThread =
+            new ScheduledThreadPoolExecutor(1);
+
+    private WeatherWorkerHarness(long seed) {
+        mRandom = new Random(seed);
+        mProvider = new FakeWeatherProvider(mProviderThread, "fake-0");
+        mWorker = new WeatherUpdateWorker(mProvider, mHost, mAreaCache, TIMEOUT_MS, null);
+    }
+
+    /**
+     * @return Whether all sequences held the invariants
+     */
+    static boolean run(PrintWriter pw, int sequences) {
+        final long seed = System.currentTimeMillis();
+        pw.println("Weather worker stress: " + sequences + " sequences, seed " + seed);
+        pw.flush();
+
+        final WeatherWorkerHarness harness = new WeatherWorkerHarness(seed);
+        final long start = uptimeMillis();
+        try {
+            for (int i = 0; i < sequences; i++) {
+                if (!harness.runSequence(i)) {
+                    // The worker is stuck, the following sequences would fail as well
+                    break;
+                }
+            }
+        } finally {
+            harness.mWorkerThread.shutdownNow();
+            harness.mProviderThread.shutdownNow();
+        }
+        harness.report(pw, uptimeMillis() - start);
+        return harness.mErrorCount == 0;
+    }
+
+    private boolean runSequence(int sequence) {
+        mProvider.resetMaxInFlightCount();
+        final int ops = 1 + mRandom.nextInt(MAX_OPS_PER_SEQUENCE);
+        for (int i = 0; i < ops; i++) {
+            scriptProvider();
+            switch (mRandom.nextInt(OP_COUNT)) {
+                case OP_PERIODIC_JOB:
+                    mWorker.submit(new WeatherUpdateWorker.UpdateRequest(
+                            WeatherUpdateService.REASON_PERIODIC, false, null, startJob()));
+                    break;
+                case OP_FORCED_REQUEST:
+                    mWorker.request(new WeatherUpdateWorker.UpdateRequest(
+                            WeatherUpdateService.REASON_FORCED, true, newCaller(), null));
+                    break;
+                case OP_LOCATION_CHANGE:
+                    mHost.moveLocation(mRandom);
+                    mWorker.request(new WeatherUpdateWorker.UpdateRequest(
+                            WeatherUpdateService.REASON_LOCATION_CHANGED, true, newCaller(),
+                            null));
+                    break;
+                case OP_PROVIDER_SWITCH:
+                    mProvider.setLabel("fake-" + (++mProviderSwitches));
+                    // As done by WeatherSourceListenerService
+                    mAreaCache.clear();
+                    mHost.onCacheCleared();
+                    mWorker.request(new WeatherUpdateWorker.UpdateRequest(
+                            WeatherUpdateService.REASON_PROVIDER_CHANGED, true, null, null));
+                    break;
+                case OP_STOP_JOB:
+                    stopRandomJob();
+                    break;
+            }
+            if (mRandom.nextBoolean()) {
+                sleep(mRandom.nextInt((int) MAX_LATENCY_MS + 1));
+            }
+        }
+
+        final long deadline = uptimeMillis() + IDLE_DEADLINE_MS;
+        while (!isSettled()) {
+            if (uptimeMillis() > deadline) {
+                error(sequence, "worker not idle after " + IDLE_DEADLINE_MS + "ms, "
+                        + mRunningJobs.size() + " jobs open, provider in flight "
+                        + mProvider.getInFlightCount());
+                return false;
+            }
+            sleep(1);
+        }
+        checkInvariants(sequence);
+        return true;
+    }
+
+    private static long uptimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean isSettled() {
+        synchronized (this) {
+            if (!mRunningJobs.isEmpty()) {
+                return false;
+            }
+        }
+        return mWorker.isIdle();
+    }
+
+    private void scriptProvider() {
+        final int outcome = mRandom.nextInt(10);
+        final long latency = mRandom.nextInt((int) MAX_LATENCY_MS + 1);
+        if (outcome < 7) {
+            mProvider.script(CMWeatherManager.RequestStatus.COMPLETED, latency);
+        } else if (outcome == 7) {
+            mProvider.script(CMWeatherManager.RequestStatus.FAILED, latency);
+        } else if (outcome == 8) {
+            mProvider.script(CMWeatherManager.RequestStatus.ALREADY_IN_PROGRESS, latency);
+        } else {
+            mProvider.script(CMWeatherManager.RequestStatus.COMPLETED,
+                    FakeWeatherProvider.HANG);
+        }
+    }
+
+    private void checkInvariants(int sequence) {
+        synchronized (this) {
+            if (mJobsStarted != mJobsFinished + mJobsStopped) {
+                error(sequence, "job balance: started " + mJobsStarted + ", finished "
+                        + mJobsFinished + ", stopped " + mJobsStopped);
+            }
+            if (mCallers != mCallersNotified) {
+                error(sequence, "caller balance: " + mCallers + " callers, "
+                        + mCallersNotified + " notified");
+            }
+        }
+        if (mProvider.getMaxInFlightCount() > 1) {
+            error(sequence, mProvider.getMaxInFlightCount() + " provider requests in flight");
+        }
+        if (mProvider.getInFlightCount() != 0) {
+            error(sequence, mProvider.getInFlightCount() + " provider requests left open");
+        }
+        final String cachedKey = mHost.getLastCachedKey();
+        if (cachedKey != null && mAreaCache.get(cachedKey, mHost.elapsedRealtime(),
+                REFRESH_INTERVAL_MS) == null) {
+            error(sequence, "no cached result for " + cachedKey);
+        }
+    }
+
+    private void report(PrintWriter pw, long elapsedMs) {
+        pw.println("  time: " + elapsedMs + "ms");
+        pw.println("  provider: requests=" + mProvider.getRequestCount()
+                + " answered=" + mProvider.getAnsweredCount()
+                + " cancelled=" + mProvider.getCancelledCount()
+                + " switches=" + mProviderSwitches);
+        pw.println("  worker: completed=" + mHost.mCompleted + " failed=" + mHost.mFailed
+                + " timeouts=" + mHost.mTimeouts);
+        pw.println("  jobs: started=" + mJobsStarted + " finished=" + mJobsFinished
+                + " stopped=" + mJobsStopped);
+        pw.println("  callers: " + mCallers + " notified=" + mCallersNotified);
+        pw.println("  errors: " + mErrorCount);
+        for (String error : mErrors) {
+            pw.println("    " + error);
+        }
+    }
+
+    private synchronized void error(int sequence, String message) {
+        mErrorCount++;
+        if (mErrors.size() < MAX_REPORTED_ERRORS) {
+            mErrors.add("sequence " + sequence + ": " + message);
+        }
+    }
+
+    //===============================================================================================
+    // Jobs and callers
+    //===============================================================================================
+    private synchronized HarnessJob startJob() {
+        HarnessJob job = new HarnessJob();
+        mRunningJobs.add(job);
+        mJobsStarted++;
+        return job;
+    }
+
+    private void stopRandomJob() {
+        final HarnessJob job;
+        synchronized (this) {
+            if (mRunningJobs.isEmpty()) {
+                return;
+            }
+            job = mRunningJobs.remove(mRandom.nextInt(mRunningJobs.size()));
+            job.mDone = true;
+            mJobsStopped++;
+        }
+        mWorker.onStopJob(job);
+    }
+
+    private synchronized ResultReceiver newCaller() {
+        mCallers++;
+        return new HarnessCaller();
+    }
+
+    private class HarnessJob implements WeatherUpdateWorker.Job {
+        // Guarded by the harness
+        boolean mDone;
+
+        @Override
+        public void finish(boolean reschedule) {
+            synchronized (WeatherWorkerHarness.this) {
+                if (mDone) {
+                    error(-1, "job finished after it was finished or stopped");
+                    return;
+                }
+                mDone = true;
+                mRunningJobs.remove(this);
+                mJobsFinished++;
+                if (reschedule != mHost.mLastRetry) {
+                    error(-1, "job finished with reschedule " + reschedule
+                            + ", the host decided " + mHost.mLastRetry);
+                }
+            }
+        }
+    }
+
+    private class HarnessCaller extends ResultReceiver {
+        private boolean mNotified;
+
+        HarnessCaller() {
+            // Without a handler the result is delivered on the worker thread
+            super(null);
+        }
+
+        @Override
+        protected void onReceiveResult(int resultCode, Bundle resultData) {
+            synchronized (WeatherWorkerHarness.this) {
+                if (mNotified) {
+                    error(-1, "caller notified twice");
+                    return;
+                }
+                mNotified = true;
+                mCallersNotified++;
+                if (resultCode == WeatherUpdateService.RESULT_COMPLETED && (resultData == null
+                        || resultData.getParcelable(WeatherUpdateService.EXTRA_WEATHER_INFO)
+                                == null)) {
+                    error(-1, "completed result without weather info");
+                }
+            }
+        }
+    }
+
+    //===============================================================================================
+    // Host
+    //===============================================================================================
+    private class HarnessHost implements WeatherUpdateWorker.Host {
+        // The delayed tasks not run yet, so they can be removed
+        private final HashMap<Runnable, ScheduledFuture<?>> mDelayed = new HashMap<>();
+        private final Location mLocation = new Location("harness");
+        private WeatherInfo mCachedInfo;
+        // The location of the last request sent to the provider, and the area cache key of
+        // the last result it answered with, null if the cache was cleared since
+        private Location mRequestedLocation;
+        private volatile String mLastCachedKey;
+        volatile boolean mLastRetry;
+        int mCompleted;
+        int mFailed;
+        int mTimeouts;
+
+        HarnessHost() {
+            mLocation.setLatitude(52.37);
+            mLocation.setLongitude(4.89);
+            mLocation.setTime(System.currentTimeMillis());
+        }
+
+        synchronized void moveLocation(Random random) {
+            mLocation.setLatitude(-60 + random.nextDouble() * 120);
+            mLocation.setLongitude(-180 + random.nextDouble() * 360);
+        }
+
+        @Override
+        public void post(Runnable task) {
+            mWorkerThread.execute(task);
+        }
+
+        @Override
+        public void postDelayed(final Runnable task, long delayMs) {
+            synchronized (mDelayed) {
+                mDelayed.put(task, mWorkerThread.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (mDelayed) {
+                            mDelayed.remove(task);
+                        }
+                        task.run();
+                    }
+                }, delayMs, TimeUnit.MILLISECONDS));
+            }
+        }
+
+        @Override
+        public void removeCallbacks(Runnable task) {
+            synchronized (mDelayed) {
+                ScheduledFuture<?> future = mDelayed.remove(task);
+                if (future != null) {
+                    future.cancel(false);
+                }
+            }
+        }
+
+        @Override
+        public long elapsedRealtime() {
+            return uptimeMillis();
+        }
+
+        void onCacheCleared() {
+            mLastCachedKey = null;
+        }
+
+        String getLastCachedKey() {
+            return mLastCachedKey;
+        }
+
+        @Override
+        public WeatherLocation getCustomWeatherLocation() {
+            return null;
+        }
+
+        @Override
+        public synchronized Location getCurrentLocation() {
+            // Called once per request, jobs stopped before a decision aren't rescheduled
+            mLastRetry = false;
+            mRequestedLocation = new Location(mLocation);
+            return mRequestedLocation;
+        }
+
+        @Override
+        public WeatherInfo getCachedWeatherInfo() {
+            return mCachedInfo;
+        }
+
+        @Override
+        public long getRefreshInterval() {
+            return REFRESH_INTERVAL_MS;
+        }
+
+        @Override
+        public void onUpdateCompleted(WeatherInfo info, long fetchedAt) {
+            mCachedInfo = info;
+            mCompleted++;
+            mLastRetry = false;
+            synchronized (this) {
+                mLastCachedKey = LocationWeatherCache.keyFor(mRequestedLocation);
+            }
+        }
+
+        @Override
+        public boolean onUpdateFailed(int status) {
+            mFailed++;
+            mLastRetry = status == CMWeatherManager.RequestStatus.FAILED;
+            return mLastRetry;
+        }
+
+        @Override
+        public boolean onUpdateTimedOut() {
+            mTimeouts++;
+            mLastRetry = true;
+            return true;
+        }
+
+        @Override
+        public void onRequestFinished(boolean cancelled) {
+        }
+
+        @Override
+        public void scheduleJob(String reason, boolean force) {
+            // Stands in for the job scheduler, the job starts right away
+            mWorker.submit(new WeatherUpdateWorker.UpdateRequest(reason, force, null,
+                    startJob()));
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2016 The CyanogenMod Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.cyanogenmod.lockclock.weather;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Runs the {@link WeatherWorkerHarness} on the JVM. The worker runs on a thread of the
+ * harness, Robolectric only provides the framework classes it passes values in. The number
+ * of sequences is taken from the 'lockclock.stress.sequences' system property.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE)
+public class WeatherWorkerStressTest {
+    private static final int DEFAULT_SEQUENCES = 1000;
+
+    @Test
+    public void randomSequencesKeepInvariants() {
+        final StringWriter out = new StringWriter();
+        final PrintWriter pw = new PrintWriter(out);
+        final boolean passed = WeatherWorkerHarness.run(pw,
+                Integer.getInteger("lockclock.stress.sequences", DEFAULT_SEQUENCES));
+        pw.flush();
+        assertTrue(out.toString(), passed);
+    }
+}